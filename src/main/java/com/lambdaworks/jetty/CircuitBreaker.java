@@ -0,0 +1,94 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker that opens after a number of consecutive failed cache
+ * operations and stays open until a probe finds the cluster healthy again.
+ *
+ * @author  Will Glozer
+ */
+class CircuitBreaker {
+    private final CoarseClock clock;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong trips = new AtomicLong();
+
+    private volatile int threshold;
+    private volatile long interval;
+    private volatile boolean open;
+    private volatile long openedAt;
+
+    /**
+     * Create a new instance.
+     *
+     * @param   clock       Clock to time the open interval with.
+     * @param   threshold   Consecutive failures that open the breaker.
+     * @param   interval    Milliseconds between probes while open.
+     */
+    CircuitBreaker(CoarseClock clock, int threshold, long interval) {
+        this.clock = clock;
+        this.threshold = threshold;
+        this.interval = interval;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Return true if the breaker is open and has waited long enough to probe
+     * the cluster.
+     *
+     * @return  True if a probe is due.
+     */
+    boolean isProbeDue() {
+        return open && clock.currentTimeMillis() - openedAt >= interval;
+    }
+
+    void success() {
+        if (failures.get() != 0) failures.set(0);
+    }
+
+    /**
+     * Record a failed operation, opening the breaker when the threshold of
+     * consecutive failures is reached.
+     *
+     * @return  True if this failure opened the breaker.
+     */
+    synchronized boolean failure() {
+        if (failures.incrementAndGet() >= threshold && !open) {
+            openedAt = clock.currentTimeMillis();
+            open = true;
+            trips.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keep the breaker open after a failed probe.
+     */
+    synchronized void reopen() {
+        openedAt = clock.currentTimeMillis();
+    }
+
+    synchronized void close() {
+        failures.set(0);
+        open = false;
+    }
+
+    long getTrips() {
+        return trips.get();
+    }
+
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    void setInterval(long interval) {
+        this.interval = interval;
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+/**
+ * Clock shared by the sessions of an {@link InfinispanSessionManager} that is
+ * periodically updated from {@link System#currentTimeMillis()}, allowing the
+ * per-request path to read the time from a volatile field.
+ *
+ * @author  Will Glozer
+ */
+class CoarseClock implements Runnable {
+    private volatile long now;
+
+    CoarseClock() {
+        run();
+    }
+
+    /**
+     * Return the time of the last update.
+     *
+     * @return  Time in milliseconds since the epoch.
+     */
+    long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void run() {
+        now = System.currentTimeMillis();
+    }
+}
@@ -2,18 +2,27 @@
 
 package com.lambdaworks.jetty;
 
+import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.security.Authenticator;
 import org.eclipse.jetty.security.ServerAuthException;
 import org.eclipse.jetty.security.authentication.FormAuthenticator;
 import org.eclipse.jetty.security.authentication.SessionAuthentication;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.eclipse.jetty.server.Authentication;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SessionManager;
 import org.eclipse.jetty.server.UserIdentity;
+import org.eclipse.jetty.server.session.AbstractSessionManager;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 public class InfinispanFormAuthenticator extends FormAuthenticator {
+    private boolean renewSession;
+
     /**
      * Create a new instance.
      *
@@ -27,7 +36,8 @@ public class InfinispanFormAuthenticator extends FormAuthenticator {
 
     /**
      * On successful request validation replace the {@link SessionAuthentication} stored
-     * in the current session with a {@link SerializableSessionAuthentication}.
+     * in the current session with a {@link SerializableSessionAuthentication} and
+     * {@link InfinispanSessionManager#promote(HttpSession) promote} the session.
      *
      * @param   req     Servlet request.
      * @param   res     Servlet response.
@@ -48,9 +58,50 @@ public class InfinispanFormAuthenticator extends FormAuthenticator {
                 UserIdentity identity = sessionAuth.getUserIdentity();
                 auth = new SerializableSessionAuthentication(method, identity);
                 session.setAttribute(SessionAuthentication.__J_AUTHENTICATED, auth);
+
+                SessionManager manager = getBaseRequest(req).getSessionManager();
+                if (manager instanceof InfinispanSessionManager) {
+                    ((InfinispanSessionManager) manager).promote(session);
+                }
             }
         }
 
         return formAuth;
     }
+
+    @Override
+    public void setConfiguration(Authenticator.AuthConfiguration configuration) {
+        super.setConfiguration(configuration);
+        renewSession = configuration.isSessionRenewedOnAuthentication();
+    }
+
+    /**
+     * Change the session ID on authentication with {@link InfinispanSessionManager#rotate}
+     * instead of copying the session's attributes to a new session.
+     *
+     * @param   request     Servlet request.
+     * @param   response    Servlet response, may be null.
+     *
+     * @return  The session.
+     */
+    @Override
+    protected HttpSession renewSession(HttpServletRequest request, HttpServletResponse response) {
+        Request baseRequest = getBaseRequest(request);
+        SessionManager manager = baseRequest.getSessionManager();
+        if (!(manager instanceof InfinispanSessionManager)) {
+            return super.renewSession(request, response);
+        }
+
+        HttpSession session = request.getSession(false);
+        if (renewSession && session != null && session.getAttribute(AbstractSessionManager.SESSION_KNOWN_ONLY_TO_AUTHENTICATED) != Boolean.TRUE) {
+            HttpCookie cookie = ((InfinispanSessionManager) manager).rotate(session, request);
+            session.setAttribute(AbstractSessionManager.SESSION_KNOWN_ONLY_TO_AUTHENTICATED, Boolean.TRUE);
+            baseRequest.getResponse().addCookie(cookie);
+        }
+        return session;
+    }
+
+    private Request getBaseRequest(ServletRequest req) {
+        return (req instanceof Request) ? (Request) req : AbstractHttpConnection.getCurrentConnection().getRequest();
+    }
 }
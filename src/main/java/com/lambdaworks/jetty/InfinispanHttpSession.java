@@ -2,13 +2,16 @@
 
 package com.lambdaworks.jetty;
 
+import org.eclipse.jetty.http.HttpCookie;
 import org.infinispan.Cache;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 import javax.servlet.http.HttpSessionContext;
+import javax.servlet.http.HttpSessionEvent;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -18,24 +21,34 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * {@link HttpSession} implementation designed to be replicated in an Infinispan
- * distributed {@link Cache}.
+ * distributed cache, or any other {@link SessionStore}.
  *
  * @author  Will Glozer
  */
 public class InfinispanHttpSession implements HttpSession, Serializable {
     static final long serialVersionUID = 542979088595232166L;
 
-    private transient Cache<String, InfinispanHttpSession> cache;
+    private transient SessionStore store;
     private transient ServletContext context;
     private transient boolean isModified;
+    private transient boolean isDeferred;
+    private transient boolean isRemovalDeferred;
+    private transient boolean isRetained;
+    private transient HttpCookie cookie;
+    private transient HttpSessionEvent event;
 
     private String id;
+    private String key;
+    private boolean isAlias;
     private long createdAt;
     private long lastAccessedAt;
     private long cookieCreatedAt;
     private int maxIdleTime;
     private Map<String, Object> attributes;
     private boolean isValid;
+    private boolean isNew;
+    private long version;
+    private String site;
 
     /**
      * Create a new instance.
@@ -45,12 +58,14 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
      */
     public InfinispanHttpSession(String id, int maxIdleTime) {
         this.id = id;
+        this.key = id;
         this.createdAt = System.currentTimeMillis();
         this.lastAccessedAt = this.createdAt;
         this.cookieCreatedAt = this.createdAt;
         this.maxIdleTime = maxIdleTime;
         this.attributes = new ConcurrentHashMap<String, Object>();
         this.isValid = true;
+        this.isNew = true;
     }
 
     @Override
@@ -121,12 +136,15 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
         isModified = true;
         isValid = false;
 
-        cache.remove(id);
+        if (!isDeferred && !isRemovalDeferred) {
+            store.remove(getKey());
+            if (!id.equals(getKey())) store.remove(id);
+        }
     }
 
     @Override
     public boolean isNew() {
-        return createdAt == lastAccessedAt;
+        return isNew;
     }
 
     /** Internal methods **/
@@ -134,14 +152,110 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
     /**
      * Restore transient fields to their server-local values.
      *
-     * @param   cache   The {@link Cache} this jetty is associated with.
-     * @param   context The {@link ServletContext} this jetty is associated with.
+     * @param   store   The {@link SessionStore} this session is associated with.
+     * @param   context The {@link ServletContext} this session is associated with.
      */
-    public void restore(Cache<String, InfinispanHttpSession> cache, ServletContext context) {
-        this.cache = cache;
+    public void restore(SessionStore store, ServletContext context) {
+        this.store = store;
         this.context = context;
     }
 
+    /**
+     * Restore transient fields to their server-local values.
+     *
+     * @param   cache   The {@link Cache} this session is associated with.
+     * @param   context The {@link ServletContext} this session is associated with.
+     */
+    public void restore(Cache<String, InfinispanHttpSession> cache, ServletContext context) {
+        restore(new InfinispanSessionStore(cache), context);
+    }
+
+    /**
+     * Create an alias entry that maps a session's current ID to the key it is
+     * stored under.
+     *
+     * @param   id      Session ID.
+     * @param   key     Cache key of the session.
+     *
+     * @return  The alias.
+     */
+    static InfinispanHttpSession alias(String id, String key) {
+        InfinispanHttpSession alias = new InfinispanHttpSession(id, 0);
+        alias.key = key;
+        alias.isAlias = true;
+        return alias;
+    }
+
+    /**
+     * Create a tombstone that marks a removed session, an alias to itself that
+     * never resolves and is newer than any copy of the session.
+     *
+     * @param   id      Session ID.
+     *
+     * @return  The tombstone.
+     */
+    static InfinispanHttpSession tombstone(String id) {
+        InfinispanHttpSession tombstone = alias(id, id);
+        tombstone.isValid = false;
+        tombstone.version = Long.MAX_VALUE;
+        return tombstone;
+    }
+
+    /**
+     * Fetch the session with an ID from a store, following an alias to the key
+     * the session is stored under. A session whose ID has been changed is not
+     * returned for its old ID.
+     *
+     * @param   store   The {@link SessionStore} sessions are stored in.
+     * @param   id      Session ID.
+     *
+     * @return  The session or null if no session has the ID.
+     */
+    static InfinispanHttpSession lookup(SessionStore store, String id) {
+        InfinispanHttpSession session = store.get(id);
+        if (session != null && session.isAlias) session = store.get(session.key);
+        return (session != null && session.hasId(id)) ? session : null;
+    }
+
+    /**
+     * Return true if this is a session, not an alias, and it currently has the ID.
+     *
+     * @param   id  Session ID.
+     *
+     * @return  True if the ID matches.
+     */
+    boolean hasId(String id) {
+        return !isAlias && id.equals(this.id);
+    }
+
+    /**
+     * Return the key this session is stored under in the cache, which remains
+     * the original ID when the ID is changed.
+     *
+     * @return  Cache key.
+     */
+    String getKey() {
+        return (key != null) ? key : id;
+    }
+
+    /**
+     * Change the ID of this session, which must already be reachable by the new
+     * ID through an {@link #alias(String, String) alias} unless it is deferred.
+     *
+     * @param   id  New session ID.
+     */
+    void setId(String id) {
+        if (isDeferred) key = id;
+        else key = getKey();
+        this.id = id;
+        this.cookie = null;
+        this.isModified = true;
+    }
+
+    boolean isAlias() {
+        return isAlias;
+    }
+
     boolean isValid() {
         return isValid;
     }
@@ -150,6 +264,62 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
         return isModified;
     }
 
+    long getVersion() {
+        return version;
+    }
+
+    String getSite() {
+        return site;
+    }
+
+    /**
+     * Increment the session version before it is written to the cache.
+     *
+     * @param   site    Name of the site writing the session, or null.
+     */
+    void stamp(String site) {
+        this.version++;
+        this.site = site;
+    }
+
+    boolean hasAttributes() {
+        return !attributes.isEmpty();
+    }
+
+    Map<String, Object> getAttributeMap() {
+        return attributes;
+    }
+
+    boolean isDeferred() {
+        return isDeferred;
+    }
+
+    void setDeferred(boolean isDeferred) {
+        this.isDeferred = isDeferred;
+    }
+
+    boolean isRemovalDeferred() {
+        return isRemovalDeferred;
+    }
+
+    /**
+     * Leave the removal of this session from the store to the manager when the
+     * session is invalidated, rather than blocking on the store.
+     *
+     * @param   isRemovalDeferred   True to only mark the session invalid.
+     */
+    void setRemovalDeferred(boolean isRemovalDeferred) {
+        this.isRemovalDeferred = isRemovalDeferred;
+    }
+
+    boolean isRetained() {
+        return isRetained;
+    }
+
+    void setRetained(boolean isRetained) {
+        this.isRetained = isRetained;
+    }
+
     long getCookieCreatedAt() {
         return cookieCreatedAt;
     }
@@ -158,9 +328,28 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
         this.cookieCreatedAt = cookieCreatedAt;
     }
 
+    HttpCookie getCookie() {
+        return cookie;
+    }
+
+    void setCookie(HttpCookie cookie) {
+        this.cookie = cookie;
+    }
+
+    /**
+     * Return an event for this session that is reused across listener callbacks.
+     *
+     * @return  The session event.
+     */
+    HttpSessionEvent getEvent() {
+        if (event == null) event = new HttpSessionEvent(this);
+        return event;
+    }
+
     void access(long lastAccessedAt) {
         this.lastAccessedAt = lastAccessedAt;
         this.isModified = false;
+        this.isNew = false;
     }
 
     protected void bind(String name, Object value) {
@@ -177,6 +366,22 @@ public class InfinispanHttpSession implements HttpSession, Serializable {
         }
     }
 
+    protected void passivate() {
+        for (Object value : attributes.values()) {
+            if (value instanceof HttpSessionActivationListener) {
+                ((HttpSessionActivationListener) value).sessionWillPassivate(getEvent());
+            }
+        }
+    }
+
+    protected void activate() {
+        for (Object value : attributes.values()) {
+            if (value instanceof HttpSessionActivationListener) {
+                ((HttpSessionActivationListener) value).sessionDidActivate(getEvent());
+            }
+        }
+    }
+
     /** Obsolete and deprecated methods **/
 
     @Deprecated
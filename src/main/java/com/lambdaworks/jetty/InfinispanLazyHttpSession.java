@@ -0,0 +1,236 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Lightweight {@link HttpSession} proxy returned by the {@link InfinispanSessionManager}
+ * when lazy loading is enabled. The ID, {@link #isNew()} and validity are answered
+ * from the session cookie while the session is looked up in the background, the
+ * request only waits for the lookup when the session's state is first read or
+ * modified. A session that no longer exists is discovered then, and behaves like
+ * a session invalidated during the request.
+ *
+ * @author  Will Glozer
+ */
+public class InfinispanLazyHttpSession implements HttpSession {
+    private SessionStore store;
+    private ServletContext context;
+    private Future<InfinispanHttpSession> lookup;
+    private InfinispanHttpSession session;
+
+    private String id;
+    private long lastAccessedAt;
+    private long cookieCreatedAt;
+    private boolean isLoaded;
+    private boolean isValid;
+    private boolean isRemovalDeferred;
+
+    /**
+     * Create a new instance.
+     *
+     * @param   id      Session ID.
+     * @param   store   The {@link SessionStore} the session is stored in.
+     * @param   context The {@link ServletContext} this session is associated with.
+     * @param   lookup  Pending {@link InfinispanHttpSession#lookup(SessionStore, String) lookup}
+     *                  of the session.
+     * @param   isRemovalDeferred   True if the manager removes the session when
+     *                              it is invalidated.
+     */
+    InfinispanLazyHttpSession(String id, SessionStore store, ServletContext context, Future<InfinispanHttpSession> lookup, boolean isRemovalDeferred) {
+        this.id = id;
+        this.store = store;
+        this.context = context;
+        this.lookup = lookup;
+        this.isValid = true;
+        this.isRemovalDeferred = isRemovalDeferred;
+    }
+
+    @Override
+    public long getCreationTime() {
+        InfinispanHttpSession session = load();
+        return session != null ? session.getCreationTime() : 0;
+    }
+
+    @Override
+    public String getId() {
+        return (session != null) ? session.getId() : id;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        InfinispanHttpSession session = load();
+        return session != null ? session.getLastAccessedTime() : lastAccessedAt;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return context;
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+        loadOrFail().setMaxInactiveInterval(interval);
+    }
+
+    @Override
+    public int getMaxInactiveInterval() {
+        InfinispanHttpSession session = load();
+        return session != null ? session.getMaxInactiveInterval() : 0;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        InfinispanHttpSession session = load();
+        return session != null ? session.getAttribute(name) : null;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        InfinispanHttpSession session = load();
+        if (session == null) return Collections.enumeration(Collections.<String>emptyList());
+        return session.getAttributeNames();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        loadOrFail().setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        InfinispanHttpSession session = load();
+        if (session != null) session.removeAttribute(name);
+    }
+
+    @Override
+    public void invalidate() {
+        InfinispanHttpSession session = load();
+        if (session != null) {
+            session.invalidate();
+        }
+        isValid = false;
+    }
+
+    @Override
+    public boolean isNew() {
+        return false;
+    }
+
+    /** Internal methods **/
+
+    /**
+     * Wait for the lookup of the full session on first use.
+     *
+     * @return The session or null if it no longer exists.
+     */
+    InfinispanHttpSession load() {
+        if (!isLoaded) {
+            session = await();
+            isLoaded = true;
+            if (session != null) {
+                session.restore(store, context);
+                session.setRemovalDeferred(isRemovalDeferred);
+                if (lastAccessedAt > 0) session.access(lastAccessedAt);
+                if (cookieCreatedAt > 0) session.setCookieCreatedAt(cookieCreatedAt);
+            } else {
+                isValid = false;
+            }
+        }
+        return session;
+    }
+
+    InfinispanHttpSession getLoadedSession() {
+        return session;
+    }
+
+    /**
+     * Return false once the session is known to be invalid or missing, without
+     * waiting for a lookup that has not completed.
+     *
+     * @return  True unless the session is known to be invalid.
+     */
+    boolean isValid() {
+        if (!isLoaded && lookup.isDone()) load();
+        return isValid && (session == null || session.isValid());
+    }
+
+    long getCookieCreatedAt() {
+        return session != null ? session.getCookieCreatedAt() : cookieCreatedAt;
+    }
+
+    void setCookieCreatedAt(long cookieCreatedAt) {
+        if (session != null) {
+            session.setCookieCreatedAt(cookieCreatedAt);
+        } else {
+            this.cookieCreatedAt = cookieCreatedAt;
+        }
+    }
+
+    void access(long lastAccessedAt) {
+        if (session != null) {
+            session.access(lastAccessedAt);
+        } else {
+            this.lastAccessedAt = lastAccessedAt;
+        }
+    }
+
+    private InfinispanHttpSession await() {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading session " + id, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Unable to load session " + id, e.getCause());
+        }
+    }
+
+    private InfinispanHttpSession loadOrFail() {
+        InfinispanHttpSession session = load();
+        if (session == null) {
+            throw new IllegalStateException("Session " + id + " no longer exists");
+        }
+        return session;
+    }
+
+    /** Obsolete and deprecated methods **/
+
+    @Deprecated
+    @Override
+    public Object getValue(String name) {
+        throw new UnsupportedOperationException("This method is deprecated");
+    }
+
+    @Deprecated
+    @Override
+    public void removeValue(String name) {
+        throw new UnsupportedOperationException("This method is deprecated");
+    }
+
+    @Deprecated
+    @Override
+    public String[] getValueNames() {
+        throw new UnsupportedOperationException("This method is deprecated");
+    }
+
+    @Deprecated
+    @Override
+    public void putValue(String name, Object value) {
+        throw new UnsupportedOperationException("This method is deprecated");
+    }
+
+    @Deprecated
+    @Override
+    public HttpSessionContext getSessionContext() {
+        throw new UnsupportedOperationException("This method is deprecated");
+    }
+}
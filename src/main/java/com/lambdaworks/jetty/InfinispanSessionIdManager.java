@@ -12,13 +12,18 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Jetty {@link org.eclipse.jetty.server.SessionIdManager} that checks for
- * existing sessions in an Infinispan distributed {@link Cache}.
+ * existing sessions in an Infinispan distributed {@link Cache}, or any other
+ * {@link SessionStore}.
  *
  * @author  Will Glozer
  */
 public class InfinispanSessionIdManager extends AbstractSessionIdManager {
-    private Cache<String, InfinispanHttpSession> cache;
+    private SessionStore store;
+    private SessionStore localStore;
     private TimeUnit maxIdleUnit;
+    private volatile SessionIdFilter filter;
+    private CircuitBreaker breaker;
+    private volatile boolean nodeLocal;
 
     /**
      * Create a new instance.
@@ -26,37 +31,95 @@ public class InfinispanSessionIdManager extends AbstractSessionIdManager {
      * @param   cache   The cache to manage session IDs in.
      */
     public InfinispanSessionIdManager(Cache<String, InfinispanHttpSession> cache, TimeUnit maxIdleUnit) {
-        this.cache = cache;
+        this(new InfinispanSessionStore(cache), maxIdleUnit);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param   store   The store to manage session IDs in.
+     */
+    public InfinispanSessionIdManager(SessionStore store, TimeUnit maxIdleUnit) {
+        this.store = store;
+        this.localStore = store.local();
         this.maxIdleUnit = maxIdleUnit;
     }
 
     @Override
     public boolean idInUse(String id) {
-        return id != null && cache.containsKey(id);
+        if (id == null) return false;
+
+        SessionIdFilter filter = this.filter;
+        if (filter != null && !filter.mightContain(id)) return false;
+
+        // the old ID of a rotated session is still its key, but no longer in use
+        SessionStore store = (nodeLocal || (breaker != null && breaker.isOpen())) ? localStore : this.store;
+        boolean inUse = InfinispanHttpSession.lookup(store, id) != null;
+        if (!inUse && filter != null) filter.falsePositive();
+        return inUse;
+    }
+
+    /**
+     * Use a filter of existing session IDs to answer {@link #idInUse(String)}
+     * without consulting the store when the ID certainly does not exist.
+     *
+     * @param   filter  Session ID filter, or null.
+     */
+    void setFilter(SessionIdFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Only check this node's copy of the sessions while the circuit breaker of the
+     * session manager is open.
+     *
+     * @param   breaker     Circuit breaker.
+     */
+    void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Only check this node's copy of the sessions, for session managers whose cache
+     * operations have a latency budget. New IDs are then checked by the write that
+     * creates the session, rather than by a read holding this manager's lock.
+     *
+     * @param   nodeLocal   True to check this node's copy only.
+     */
+    void setNodeLocal(boolean nodeLocal) {
+        this.nodeLocal = nodeLocal;
     }
 
     @Override
     public void addSession(HttpSession httpSession) {
         InfinispanHttpSession session = (InfinispanHttpSession) httpSession;
-        cache.put(session.getId(), session, -1, maxIdleUnit, session.getMaxInactiveInterval(), maxIdleUnit);
+        store.put(session.getKey(), session, session.getMaxInactiveInterval(), maxIdleUnit);
     }
 
     @Override
     public void removeSession(HttpSession httpSession) {
-        cache.remove(httpSession.getId());
+        store.remove(((InfinispanHttpSession) httpSession).getKey());
     }
 
     @Override
     public void invalidateAll(String id) {
-        InfinispanHttpSession session = cache.get(id);
+        InfinispanHttpSession session = InfinispanHttpSession.lookup(store, id);
         if (session != null) {
             session.invalidate();
         }
     }
 
+    /**
+     * Return the session ID without the version suffix of a versioned cookie.
+     *
+     * @param   id  Session ID, which may be versioned.
+     *
+     * @return  The session ID.
+     */
     @Override
     public String getClusterId(String id) {
-        return id;
+        int dot = id.lastIndexOf('.');
+        return (dot > 0) ? id.substring(0, dot) : id;
     }
 
     @Override
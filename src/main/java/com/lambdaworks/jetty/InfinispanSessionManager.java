@@ -3,50 +3,99 @@
 package com.lambdaworks.jetty;
 
 import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.eclipse.jetty.server.SessionIdManager;
 import org.eclipse.jetty.server.SessionManager;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 import org.infinispan.Cache;
-import org.infinispan.notifications.Listener;
-import org.infinispan.notifications.cachelistener.annotation.*;
-import org.infinispan.notifications.cachelistener.event.*;
 
 import javax.servlet.SessionCookieConfig;
 import javax.servlet.SessionTrackingMode;
 import javax.servlet.http.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Jetty {@link SessionManager} that stores sessions in an Infinispan
- * distributed {@link Cache}.
+ * distributed {@link Cache}, or any other {@link SessionStore}.
  *
  * All objects stored in the {@link InfinispanHttpSession} must implement
  * {@link java.io.Serializable} and also have a no-arg constructor.
  *
  * @author  Will Glozer
  */
-@Listener(sync = false)
-public class InfinispanSessionManager extends AbstractLifeCycle implements SessionManager {
-    private Cache<String, InfinispanHttpSession> cache;
+public class InfinispanSessionManager extends AbstractLifeCycle implements SessionManager, SessionStoreListener {
+    private static final Logger LOG = Log.getLogger(InfinispanSessionManager.class);
+    private static final long CLOCK_RESOLUTION = 10;
+    private static final int SIZE_REPORT_CAPACITY = 1000;
+    private static final String RECONCILE_PROBE = InfinispanSessionManager.class.getName() + ".probe";
+    private static final InfinispanHttpSession TIMEOUT = new InfinispanHttpSession(null, 0);
+
+    private SessionStore store;
+    private SessionStore localStore;
+    private SessionStore asyncStore;
+    private boolean storeStarted;
+    private ConcurrentMap<String, InfinispanHttpSession> deferred;
+    private ConcurrentMap<String, InfinispanHttpSession> degraded;
+    private CircuitBreaker breaker;
+    private String site;
+    private CoarseClock clock;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService loader;
+    private SessionSizeTracker sizeTracker;
+    private SessionIdFilter idFilter;
+    private SessionIdFilterListener idFilterListener;
 
     private SessionIdManager idManager;
     private SessionHandler handler;
     private ContextHandler.Context context;
 
     private int maxIdleTime;
+    private int anonymousMaxIdleTime;
     private TimeUnit maxIdleUnit;
 
     private InfinispanSessionCookieConfig cookieConfig;
+    private int cookieRefreshInterval = -1;
     private String sessionIdPathParameterName = __DefaultSessionIdPathParameterName;
     private String sessionIdPathParameterNamePrefix = ";"+ sessionIdPathParameterName + "=";
     private boolean checkRemoteSessionId;
+    private boolean lazyLoading;
+    private boolean deferNewSessions;
+    private boolean sizeAccounting;
+    private int softSizeLimit;
+    private int hardSizeLimit;
+    private boolean rejectOversizedSessions;
+    private int idFilterCapacity;
+    private double idFilterFalsePositiveRate = 0.01;
+    private int idFilterRebuildInterval = 300;
+    private int readBudget;
+    private int writeBudget;
+    private boolean versionedCookies;
+    private int versionWait = 100;
+    private final AtomicLong staleReads = new AtomicLong();
 
     protected Object listeners;
     protected Object attributeListeners;
+    protected Object idListeners;
 
     /**
      * Create a new instance.
@@ -54,9 +103,29 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
      * @param   cache   The cache to manage sessions in.
      */
     public InfinispanSessionManager(Cache<String, InfinispanHttpSession> cache) {
+        this(new InfinispanSessionStore(cache));
+    }
+
+    /**
+     * Create a new instance. A store with a {@link LifeCycle} is started with the
+     * manager unless already running, and is then stopped with the manager.
+     *
+     * @param   store   The store to manage sessions in.
+     */
+    public InfinispanSessionManager(SessionStore store) {
         this.maxIdleUnit = TimeUnit.SECONDS;
-        this.idManager = new InfinispanSessionIdManager(cache, maxIdleUnit);
-        this.cache = cache;
+        this.idManager = new InfinispanSessionIdManager(store, maxIdleUnit);
+        this.store = store;
+        this.deferred = new ConcurrentHashMap<String, InfinispanHttpSession>();
+        this.clock = new CoarseClock();
+        this.localStore = store.local();
+        this.asyncStore = store.async();
+        this.degraded = new ConcurrentHashMap<String, InfinispanHttpSession>();
+        this.breaker = new CircuitBreaker(clock, 5, 10000);
+        ((InfinispanSessionIdManager) idManager).setCircuitBreaker(breaker);
+
+        boolean marshalled = store instanceof InfinispanSessionStore;
+        this.sizeTracker = new SessionSizeTracker(marshalled ? ((InfinispanSessionStore) store).getMarshaller() : null, SIZE_REPORT_CAPACITY);
 
         cookieConfig = new InfinispanSessionCookieConfig();
         cookieConfig.setName(__DefaultSessionCookie);
@@ -65,25 +134,103 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
         cookieConfig.setHttpOnly(false);
         cookieConfig.setSecure(false);
 
-        cache.addListener(this);
+        site = store.getSite();
+        store.addListener(this, false);
+    }
+
+    public SessionStore getSessionStore() {
+        return store;
     }
 
     @Override
-    public HttpSession getHttpSession(String id) {
-        return cache.get(id);
+    public HttpSession getHttpSession(String requestedId) {
+        String id = requestedId;
+        long version = 0;
+
+        int dot = versionedCookies ? requestedId.lastIndexOf('.') : -1;
+        if (dot > 0) {
+            id = requestedId.substring(0, dot);
+            try {
+                version = Long.parseLong(requestedId.substring(dot + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        InfinispanHttpSession session = deferred.get(id);
+        if (session != null) {
+            return session;
+        }
+
+        // sessions created while degraded only reach the filter once reconciled
+        SessionIdFilter idFilter = this.idFilter;
+        if (idFilter != null && !idFilter.mightContain(id) && !degraded.containsKey(id)) {
+            return null;
+        }
+
+        if (version > 0) {
+            session = awaitVersion(id, version);
+            if (session != null) return session;
+        } else if (lazyLoading && readBudget <= 0 && !breaker.isOpen() && degraded.isEmpty() && !store.holdsAllKeys()) {
+            return new InfinispanLazyHttpSession(id, store, context, lookupAsync(id), isBudgeted());
+        } else {
+            session = load(id);
+            if (session != null) return session;
+        }
+
+        if (idFilter != null) idFilter.falsePositive();
+        return null;
     }
 
     @Override
     public HttpSession newHttpSession(HttpServletRequest request) {
         String id = idManager.newSessionId(request, -1L);
-        InfinispanHttpSession session = new InfinispanHttpSession(id, maxIdleTime);
-        session.restore(cache, context);
+        int maxIdleTime = (anonymousMaxIdleTime > 0) ? anonymousMaxIdleTime : this.maxIdleTime;
+        InfinispanHttpSession session = restore(new InfinispanHttpSession(id, maxIdleTime), store);
+
+        if (deferNewSessions) {
+            session.setDeferred(true);
+            deferred.put(id, session);
+            return session;
+        }
 
-        cache.put(id, session, -1, maxIdleUnit, maxIdleTime, maxIdleUnit);
+        while (!write(session, true, false)) {
+            // the ID is still the key of a session whose ID was changed
+            session = restore(new InfinispanHttpSession(idManager.newSessionId(withoutRequestedId(request), -1L), maxIdleTime), store);
+        }
 
         return session;
     }
 
+    /**
+     * Keep new sessions node-local until {@link #complete(HttpSession)} finds
+     * they carry attributes, or were explicitly {@link #retain(HttpSession) retained},
+     * and only then write them to the cache. Empty new sessions are dropped
+     * without ever being replicated, and {@link HttpSessionListener}s are only
+     * notified of sessions that reach the cache.
+     *
+     * @param   deferNewSessions    True to defer writing new sessions.
+     */
+    public void setDeferNewSessions(boolean deferNewSessions) {
+        this.deferNewSessions = deferNewSessions;
+    }
+
+    public boolean isDeferNewSessions() {
+        return deferNewSessions;
+    }
+
+    /**
+     * Ensure a deferred session is written to the cache when the current request
+     * completes, even if it carries no attributes.
+     *
+     * @param   session     The session to retain.
+     */
+    public void retain(HttpSession session) {
+        if (session instanceof InfinispanHttpSession) {
+            ((InfinispanHttpSession) session).setRetained(true);
+        }
+    }
+
     @Override
     public boolean getHttpOnly() {
         return cookieConfig.httpOnly;
@@ -104,6 +251,444 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
         this.maxIdleUnit = unit;
     }
 
+    public int getAnonymousMaxInactiveInterval() {
+        return anonymousMaxIdleTime;
+    }
+
+    /**
+     * Set a shorter maximum idle time for new sessions, which are promoted to
+     * the full {@link #getMaxInactiveInterval() maximum idle time} when they are
+     * {@link #promote(HttpSession) promoted} on login. A value of zero or less
+     * gives all sessions the same idle time.
+     *
+     * @param   interval    Maximum idle time of anonymous sessions.
+     */
+    public void setAnonymousMaxInactiveInterval(int interval) {
+        this.anonymousMaxIdleTime = interval;
+    }
+
+    /**
+     * Promote an anonymous session to the full maximum idle time. The cache
+     * expiry is updated when the current request completes.
+     *
+     * @param   session     The session to promote.
+     */
+    public void promote(HttpSession session) {
+        if (anonymousMaxIdleTime > 0 && session.getMaxInactiveInterval() == anonymousMaxIdleTime) {
+            session.setMaxInactiveInterval(maxIdleTime);
+        }
+    }
+
+    /**
+     * Move a session to a new ID, for example to prevent session fixation on login.
+     * Rather than copying the session to a new key and removing the old one, a
+     * small alias entry mapping the new ID to the key the session is stored under
+     * is written, and the session itself is rewritten with its new ID when the
+     * request completes. From then on the old ID no longer resolves. A deferred
+     * session is simply renamed. {@link SessionIdListener}s registered with this
+     * manager are notified.
+     * <p>
+     * For the rest of its life every read of a rotated session costs two store
+     * reads, the alias and then the session under its original key, and both
+     * entries have their idle time restarted. In a distributed cache that is an
+     * extra remote get on every request of an authenticated session.
+     * <p>
+     * The alias is written within the {@link #setSessionWriteBudget(int) write budget}.
+     * When the budget is exceeded or the circuit breaker is open the session is
+     * kept node-local and the alias is written when the session is reconciled.
+     *
+     * @param   httpSession     The session to rotate.
+     * @param   request         The current request.
+     *
+     * @return  The new session cookie, which must be added to the response.
+     */
+    public HttpCookie rotate(HttpSession httpSession, HttpServletRequest request) {
+        InfinispanHttpSession session;
+        if (httpSession instanceof InfinispanLazyHttpSession) {
+            session = ((InfinispanLazyHttpSession) httpSession).load();
+            if (session == null) throw new IllegalStateException("Session " + httpSession.getId() + " no longer exists");
+        } else {
+            session = (InfinispanHttpSession) httpSession;
+        }
+
+        String oldId = session.getId();
+        HttpServletRequest fresh = withoutRequestedId(request);
+        String newId = idManager.newSessionId(fresh, clock.currentTimeMillis());
+
+        if (session.isDeferred()) {
+            session.setId(newId);
+            deferred.put(newId, session);
+            deferred.remove(oldId);
+        } else {
+            String key = session.getKey();
+            while (!writeAlias(session, newId)) {
+                newId = idManager.newSessionId(fresh, clock.currentTimeMillis());
+            }
+            session.setId(newId);
+            if (degraded.remove(oldId, session)) degraded.put(newId, session);
+            if (!oldId.equals(key) && !breaker.isOpen()) store.removeAsync(oldId);
+        }
+
+        sizeTracker.rename(oldId, newId);
+
+        if (idListeners != null) {
+            HttpSessionEvent event = session.getEvent();
+            for (int i = 0; i < LazyList.size(idListeners); i++) {
+                ((SessionIdListener) LazyList.get(idListeners, i)).sessionIdChanged(event, oldId);
+            }
+        }
+
+        HttpCookie cookie = getSessionCookie(session, getContextPath(), request.isSecure());
+        session.setCookie(cookie);
+        session.setCookieCreatedAt(clock.currentTimeMillis());
+        return cookie;
+    }
+
+    /**
+     * Hide the requested session ID of a request, which the ID manager would
+     * otherwise reuse for a new session.
+     *
+     * @param   request     The current request.
+     *
+     * @return  Request without a requested session ID.
+     */
+    private static HttpServletRequest withoutRequestedId(HttpServletRequest request) {
+        return new HttpServletRequestWrapper(request) {
+            @Override
+            public String getRequestedSessionId() {
+                return null;
+            }
+
+            @Override
+            public Object getAttribute(String name) {
+                return "org.eclipse.jetty.server.newSessionId".equals(name) ? null : super.getAttribute(name);
+            }
+        };
+    }
+
+    /**
+     * Return lightweight {@link InfinispanLazyHttpSession} proxies from {@link #getHttpSession(String)}
+     * in stores partitioned across nodes, such as a distributed cache. The session
+     * is fetched from its owner in the background, restarting its idle time, and
+     * the request only waits for it when the session's state is first read or
+     * modified. Until then the session is assumed to exist if the {@link #setSessionIdFilterCapacity(int)
+     * session ID filter} allows its ID. A {@link #rotate(HttpSession, HttpServletRequest) rotated}
+     * session is looked up through its alias, which takes two reads. Stores where
+     * every node holds every session answer lookups from local memory and always
+     * return the full session.
+     *
+     * @param   lazyLoading     True to enable lazy loading.
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
+    public boolean isLazyLoading() {
+        return lazyLoading;
+    }
+
+    public int getSessionCookieRefreshInterval() {
+        return cookieRefreshInterval;
+    }
+
+    /**
+     * Set the minimum interval between reissuing the session cookie of a session
+     * whose cookie has a max age. A negative value, the default, reissues the
+     * cookie once half of its max age has elapsed.
+     *
+     * @param   interval    Refresh interval in seconds.
+     */
+    public void setSessionCookieRefreshInterval(int interval) {
+        this.cookieRefreshInterval = interval;
+    }
+
+    /**
+     * Measure the serialized size of each session and attribute written by this
+     * manager, reported by {@link #getLargestSessions(int)} and {@link #getLargestAttributes(int)}.
+     * Accounting is always enabled when a size limit is set.
+     *
+     * @param   sizeAccounting  True to enable size accounting.
+     */
+    public void setSessionSizeAccounting(boolean sizeAccounting) {
+        this.sizeAccounting = sizeAccounting;
+    }
+
+    public boolean isSessionSizeAccounting() {
+        return sizeAccounting || softSizeLimit > 0 || hardSizeLimit > 0;
+    }
+
+    public int getSessionSizeSoftLimit() {
+        return softSizeLimit;
+    }
+
+    /**
+     * Set the serialized session size above which a warning is logged and
+     * {@link #getSessionSizeSoftLimitExceeded()} is incremented. A value of zero
+     * or less disables the limit.
+     *
+     * @param   bytes   Soft limit in bytes.
+     */
+    public void setSessionSizeSoftLimit(int bytes) {
+        this.softSizeLimit = bytes;
+    }
+
+    public int getSessionSizeHardLimit() {
+        return hardSizeLimit;
+    }
+
+    /**
+     * Set the serialized session size above which a session is not allowed to be
+     * written. By default the largest attributes are removed from the session
+     * until it fits, see {@link #setRejectOversizedSessions(boolean)}. A value of
+     * zero or less disables the limit.
+     *
+     * @param   bytes   Hard limit in bytes.
+     */
+    public void setSessionSizeHardLimit(int bytes) {
+        this.hardSizeLimit = bytes;
+    }
+
+    public boolean isRejectOversizedSessions() {
+        return rejectOversizedSessions;
+    }
+
+    /**
+     * Skip writing a session that exceeds the hard limit instead of removing its
+     * largest attributes. The cache keeps the last version of the session that
+     * was within the limit.
+     *
+     * @param   reject  True to reject oversized sessions.
+     */
+    public void setRejectOversizedSessions(boolean reject) {
+        this.rejectOversizedSessions = reject;
+    }
+
+    public long getSessionSizeSoftLimitExceeded() {
+        return sizeTracker.softLimitExceeded.get();
+    }
+
+    public long getSessionSizeHardLimitExceeded() {
+        return sizeTracker.hardLimitExceeded.get();
+    }
+
+    /**
+     * Return the largest sessions written by this manager, ordered by size. Only
+     * the 1000 largest sessions are tracked, and sessions that expire without the
+     * store reporting it remain until larger sessions displace them.
+     *
+     * @param   n   Maximum number of sessions.
+     *
+     * @return  Serialized size in bytes by session ID.
+     */
+    public Map<String, Integer> getLargestSessions(int n) {
+        return sizeTracker.largestSessions(n);
+    }
+
+    /**
+     * Return the attribute names with the largest values written by this manager,
+     * ordered by size.
+     *
+     * @param   n   Maximum number of attribute names.
+     *
+     * @return  Largest serialized size in bytes by attribute name.
+     */
+    public Map<String, Integer> getLargestAttributes(int n) {
+        return sizeTracker.largestAttributes(n);
+    }
+
+    public boolean isVersionedCookies() {
+        return versionedCookies;
+    }
+
+    /**
+     * Replicate session writes asynchronously and give read-your-writes consistency
+     * through the session cookie, which carries the session's version as
+     * {@code <id>.<version>}. A node receiving a request for a version newer than
+     * its copy waits for the write to be replicated. New sessions are created
+     * synchronously, so a node without a copy does not wait and the {@link
+     * #setSessionIdFilterCapacity(int) session ID filter} applies to versioned IDs
+     * too. A write made after the response has been committed cannot update the
+     * cookie, so it is replicated synchronously. Must be set before the manager
+     * is started.
+     *
+     * @param   versionedCookies    True to enable versioned cookies.
+     */
+    public void setVersionedCookies(boolean versionedCookies) {
+        this.versionedCookies = versionedCookies;
+    }
+
+    public int getVersionWaitTime() {
+        return versionWait;
+    }
+
+    /**
+     * Set the maximum time to wait for a session version requested by a cookie to
+     * be replicated to this node before continuing with the older copy.
+     *
+     * @param   millis  Wait time in milliseconds, defaults to 100.
+     */
+    public void setVersionWaitTime(int millis) {
+        this.versionWait = millis;
+    }
+
+    /**
+     * Return the number of requests that continued with an older session version
+     * than their cookie requested.
+     *
+     * @return  Number of stale reads.
+     */
+    public long getStaleReads() {
+        return staleReads.get();
+    }
+
+    public int getSessionReadBudget() {
+        return readBudget;
+    }
+
+    /**
+     * Set the time a session read may take before the session is read from this
+     * node's own copy of the cache instead and the failure is counted by the
+     * circuit breaker. Budgeted reads do not return lazy session proxies. A value
+     * of zero or less, the default, waits for the cache.
+     *
+     * @param   millis  Read budget in milliseconds.
+     */
+    public void setSessionReadBudget(int millis) {
+        this.readBudget = millis;
+    }
+
+    public int getSessionWriteBudget() {
+        return writeBudget;
+    }
+
+    /**
+     * Set the time a session write may take before the session is kept node-local
+     * until the cluster recovers and the failure is counted by the circuit breaker.
+     * The removal of invalidated sessions and the alias written by {@link #rotate
+     * ID rotation} are budgeted too. A value of zero or less, the default, waits
+     * for the cache.
+     *
+     * @param   millis  Write budget in milliseconds.
+     */
+    public void setSessionWriteBudget(int millis) {
+        this.writeBudget = millis;
+    }
+
+    /**
+     * Set the number of consecutive cache operations exceeding their budget that
+     * open the circuit breaker. While it is open sessions are read from and written
+     * to this node only, and changed sessions are reconciled with the cluster once
+     * a probe succeeds.
+     *
+     * @param   failures    Failure threshold, defaults to 5.
+     */
+    public void setCircuitBreakerThreshold(int failures) {
+        breaker.setThreshold(failures);
+    }
+
+    /**
+     * Set the interval between probes of the cluster while the circuit breaker is open.
+     *
+     * @param   interval    Probe interval in milliseconds, defaults to 10000.
+     */
+    public void setCircuitBreakerInterval(int interval) {
+        breaker.setInterval(interval);
+    }
+
+    /**
+     * Return true if the circuit breaker is open and sessions are node-local.
+     *
+     * @return  True if degraded.
+     */
+    public boolean isDegraded() {
+        return breaker.isOpen();
+    }
+
+    public int getDegradedSessionCount() {
+        return degraded.size();
+    }
+
+    public long getCircuitBreakerTrips() {
+        return breaker.getTrips();
+    }
+
+    private boolean isBudgeted() {
+        return readBudget > 0 || writeBudget > 0;
+    }
+
+    public int getSessionIdFilterCapacity() {
+        return idFilterCapacity;
+    }
+
+    /**
+     * Keep a node-local {@link SessionIdFilter} of existing session IDs so that
+     * lookups of expired or forged IDs are answered without a cache operation. The
+     * filter is updated synchronously as sessions are created and rebuilt from the
+     * store periodically to forget removed sessions. It requires a store where
+     * every node holds every key, such as a local or replicated cache. A value of zero or less,
+     * the default, disables the filter.
+     *
+     * @param   expectedSessions    Expected number of live sessions.
+     */
+    public void setSessionIdFilterCapacity(int expectedSessions) {
+        if (expectedSessions > 0 && !store.holdsAllKeys()) {
+            throw new IllegalStateException("Session ID filter requires a store holding every session, such as a local or replicated cache");
+        }
+        this.idFilterCapacity = expectedSessions;
+    }
+
+    public double getSessionIdFilterFalsePositiveRate() {
+        return idFilterFalsePositiveRate;
+    }
+
+    /**
+     * Set the false positive rate of the session ID filter when it holds the
+     * expected number of sessions.
+     *
+     * @param   rate    False positive rate, defaults to 0.01.
+     */
+    public void setSessionIdFilterFalsePositiveRate(double rate) {
+        this.idFilterFalsePositiveRate = rate;
+    }
+
+    public int getSessionIdFilterRebuildInterval() {
+        return idFilterRebuildInterval;
+    }
+
+    /**
+     * Set the interval between rebuilds of the session ID filter.
+     *
+     * @param   interval    Rebuild interval in seconds, defaults to 300.
+     */
+    public void setSessionIdFilterRebuildInterval(int interval) {
+        this.idFilterRebuildInterval = interval;
+    }
+
+    /**
+     * Return the session ID filter, whose statistics report the false positive
+     * rate and rebuild cost.
+     *
+     * @return  The filter or null if it is disabled.
+     */
+    public SessionIdFilter getSessionIdFilter() {
+        return idFilter;
+    }
+
+    /**
+     * Rebuild the session ID filter from the keys of all sessions in the store.
+     */
+    protected void rebuildSessionIdFilter() {
+        Iterable<String> ids;
+        try {
+            ids = store.keys();
+        } catch (IllegalStateException e) {
+            LOG.warn("Unable to load session IDs, filter not rebuilt", e);
+            return;
+        }
+
+        idFilter.rebuild(ids);
+    }
+
     @Override
     public void setSessionHandler(SessionHandler handler) {
         this.handler = handler;
@@ -115,6 +700,8 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
             listeners = LazyList.add(listeners, listener);
         if (listener instanceof HttpSessionAttributeListener)
             attributeListeners = LazyList.add(attributeListeners, listener);
+        if (listener instanceof SessionIdListener)
+            idListeners = LazyList.add(idListeners, listener);
     }
 
     @Override
@@ -123,21 +710,29 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
             listeners = LazyList.remove(listeners, listener);
         if (listener instanceof HttpSessionAttributeListener)
             attributeListeners = LazyList.remove(attributeListeners, listener);
+        if (listener instanceof SessionIdListener)
+            idListeners = LazyList.remove(idListeners, listener);
     }
 
     @Override
     public void clearEventListeners() {
         listeners = null;
         attributeListeners = null;
+        idListeners = null;
     }
 
     @Override
     public HttpCookie getSessionCookie(HttpSession session, String contextPath, boolean requestIsSecure) {
         String path = (cookieConfig.path == null) ? contextPath : cookieConfig.path;
 
+        String value = session.getId();
+        if (versionedCookies && session instanceof InfinispanHttpSession) {
+            value = value + "." + ((InfinispanHttpSession) session).getVersion();
+        }
+
         HttpCookie cookie = new HttpCookie(
             cookieConfig.name,
-            session.getId(),
+            value,
             cookieConfig.domain,
             (path == null || path.isEmpty()) ? "/" : path,
             cookieConfig.maxAge,
@@ -159,7 +754,15 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
 
     @Override
     public boolean isValid(HttpSession session) {
-        return ((InfinispanHttpSession) session).isValid();
+        if (session instanceof InfinispanLazyHttpSession) {
+            return ((InfinispanLazyHttpSession) session).isValid();
+        }
+
+        InfinispanHttpSession s = (InfinispanHttpSession) session;
+        if (!s.isValid() && s.isDeferred()) {
+            deferred.remove(s.getId());
+        }
+        return s.isValid();
     }
 
     @Override
@@ -174,18 +777,24 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
 
     @Override
     public HttpCookie access(HttpSession httpSession, boolean secure) {
-        HttpCookie cookie = null;
+        long now = clock.currentTimeMillis();
 
-        InfinispanHttpSession session = (InfinispanHttpSession) httpSession;
-        long now = System.currentTimeMillis();
+        if (httpSession instanceof InfinispanLazyHttpSession) {
+            return access((InfinispanLazyHttpSession) httpSession, now, secure);
+        }
 
+        InfinispanHttpSession session = (InfinispanHttpSession) httpSession;
         session.access(now);
-        long cookieCreatedAt = session.getCookieCreatedAt();
 
-        if (cookieConfig.maxAge > 0 && now >= cookieCreatedAt) {
-            session.setCookieCreatedAt(now);
-            String contextPath = (context == null) ? "/" : context.getContextPath();
-            cookie = getSessionCookie(session, contextPath, secure);
+        if (!isCookieRefreshDue(session.getCookieCreatedAt(), now)) {
+            return null;
+        }
+
+        session.setCookieCreatedAt(now);
+        HttpCookie cookie = session.getCookie();
+        if (cookie == null || cookie.isSecure() != (secure && cookieConfig.secure) || cookie.getMaxAge() != cookieConfig.maxAge) {
+            cookie = getSessionCookie(session, getContextPath(), secure);
+            session.setCookie(cookie);
         }
 
         return cookie;
@@ -193,11 +802,474 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
 
     @Override
     public void complete(HttpSession httpSession) {
+        if (httpSession instanceof InfinispanLazyHttpSession) {
+            httpSession = ((InfinispanLazyHttpSession) httpSession).getLoadedSession();
+            if (httpSession == null) return;
+        }
+
         InfinispanHttpSession session = (InfinispanHttpSession) httpSession;
-        if (session.isValid() && session.isModified()) {
+        if (session.isDeferred()) {
+            commit(session);
+        } else if (session.isValid() && session.isModified() && checkSize(session)) {
+            write(session, false, true);
+        } else if (!session.isValid() && session.isRemovalDeferred()) {
+            remove(session);
+        }
+    }
+
+    /**
+     * Write a deferred session to the cache if it carries state, otherwise drop it.
+     *
+     * @param   session     Deferred session.
+     */
+    protected void commit(InfinispanHttpSession session) {
+        String id = session.getId();
+        deferred.remove(id);
+        session.setDeferred(false);
+
+        if (session.isValid() && (session.hasAttributes() || session.isRetained()) && checkSize(session)) {
+            if (!write(session, true, true)) LOG.warn("Session {} already exists, dropping deferred session", id);
+        }
+    }
+
+    /**
+     * Write a session to the cache. When a write budget is set the write must
+     * complete within the budget, otherwise the session is kept node-local until
+     * the cluster recovers. While the circuit breaker is open all writes are kept
+     * node-local. With {@link #setVersionedCookies(boolean) versioned cookies} an
+     * update is replicated asynchronously once the client has been sent a cookie
+     * with the new version.
+     *
+     * @param   session     Session to write.
+     * @param   create      True to create a new session, false to replace an existing one.
+     * @param   sendCookie  True to send a versioned cookie, false if the caller sends one.
+     *
+     * @return  False if a new session was not written because another session
+     *          already exists under its key.
+     */
+    protected boolean write(InfinispanHttpSession session, boolean create, boolean sendCookie) {
+        session.stamp(site);
+        String key = session.getKey();
+        long maxIdleTime = session.getMaxInactiveInterval();
+
+        if (breaker.isOpen()) {
+            degraded.put(session.getId(), session);
+            return true;
+        }
+
+        SessionStore target = store;
+        if (versionedCookies) {
+            // new sessions are created synchronously, so every node knows them
+            // before their first cookie is sent and only has to wait for updates
+            boolean cookieSent = !sendCookie || sendVersionCookie(session);
+            if (cookieSent && !create) target = asyncStore;
+        }
+
+        if (writeBudget <= 0) {
+            if (create) return target.putIfAbsent(key, session, maxIdleTime, maxIdleUnit) == null;
+            target.replace(key, session, maxIdleTime, maxIdleUnit);
+            return true;
+        }
+
+        Future<InfinispanHttpSession> future = create
+            ? target.putIfAbsentAsync(key, session, maxIdleTime, maxIdleUnit)
+            : target.replaceAsync(key, session, maxIdleTime, maxIdleUnit);
+
+        InfinispanHttpSession existing = await(future, writeBudget);
+        if (existing == TIMEOUT) {
+            degraded.put(session.getId(), session);
+            return true;
+        }
+        return !create || existing == null;
+    }
+
+    /**
+     * Remove an invalidated session from the cache. When a write budget is set the
+     * removal must complete within the budget, otherwise the session is kept
+     * node-local, where it no longer resolves, until the cluster recovers.
+     *
+     * @param   session     Invalidated session.
+     */
+    protected void remove(InfinispanHttpSession session) {
+        String id = session.getId();
+        String key = session.getKey();
+
+        if (!breaker.isOpen()) {
+            if (writeBudget <= 0) {
+                store.remove(key);
+                if (!id.equals(key)) store.remove(id);
+                return;
+            }
+
+            if (await(store.removeAsync(key), writeBudget) != TIMEOUT) {
+                if (!id.equals(key)) store.removeAsync(id);
+                return;
+            }
+        }
+
+        degraded.put(id, session);
+    }
+
+    /**
+     * Write an alias that makes a session reachable by a new ID, within the write
+     * budget. If the budget is exceeded or the circuit breaker is open the session
+     * is kept node-local and the alias is written when it is reconciled.
+     *
+     * @param   session     Session being rotated.
+     * @param   id          New session ID.
+     *
+     * @return  False if the ID is already in use.
+     */
+    private boolean writeAlias(InfinispanHttpSession session, String id) {
+        String key = session.getKey();
+        long maxIdleTime = Math.max(session.getMaxInactiveInterval(), this.maxIdleTime);
+        InfinispanHttpSession alias = InfinispanHttpSession.alias(id, key);
+
+        if (breaker.isOpen()) {
+            degraded.put(id, session);
+            return true;
+        }
+
+        if (writeBudget <= 0) {
+            return store.putIfAbsent(id, alias, maxIdleTime, maxIdleUnit) == null;
+        }
+
+        InfinispanHttpSession existing = await(store.putIfAbsentAsync(id, alias, maxIdleTime, maxIdleUnit), writeBudget);
+        if (existing == TIMEOUT) {
+            degraded.put(id, session);
+            return true;
+        }
+        return existing == null;
+    }
+
+    /**
+     * Add a session cookie carrying the session's current version to the response
+     * of the current request.
+     *
+     * @param   session     Session being written.
+     *
+     * @return  True if the cookie was added, false if there is no response or it
+     *          has already been committed.
+     */
+    protected boolean sendVersionCookie(InfinispanHttpSession session) {
+        AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+        if (connection == null || connection.getResponse().isCommitted()) {
+            return false;
+        }
+
+        HttpCookie cookie = getSessionCookie(session, getContextPath(), connection.getRequest().isSecure());
+        connection.getResponse().addCookie(cookie);
+        session.setCookie(cookie);
+        session.setCookieCreatedAt(clock.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Load a session that the client has seen at the given version, waiting up to
+     * the {@link #setVersionWaitTime(int) version wait time} for a newer version
+     * to be replicated to this node. Only a copy older than the requested version
+     * is waited for, a missing session is not.
+     *
+     * @param   id          Session ID.
+     * @param   version     Version from the session cookie.
+     *
+     * @return  The session, which may be older than requested, or null.
+     */
+    protected InfinispanHttpSession awaitVersion(String id, long version) {
+        long deadline = System.currentTimeMillis() + versionWait;
+        InfinispanHttpSession session = load(id);
+
+        for (long pause = 1; session != null && session.getVersion() < version; pause = Math.min(pause * 2, 16)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                staleReads.incrementAndGet();
+                LOG.debug("Session {} version {} not replicated within {} ms", id, version, versionWait);
+                break;
+            }
+
+            try {
+                Thread.sleep(Math.min(pause, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            session = load(id);
+        }
+
+        return session;
+    }
+
+    /**
+     * Look up a session in the background for a {@link InfinispanLazyHttpSession}.
+     *
+     * @param   id  Session ID.
+     *
+     * @return  Pending lookup.
+     */
+    private Future<InfinispanHttpSession> lookupAsync(final String id) {
+        return loader.submit(new Callable<InfinispanHttpSession>() {
+            @Override
+            public InfinispanHttpSession call() {
+                return InfinispanHttpSession.lookup(store, id);
+            }
+        });
+    }
+
+    private InfinispanHttpSession load(String id) {
+        if (readBudget > 0 || breaker.isOpen() || !degraded.isEmpty()) {
+            return read(id);
+        }
+
+        InfinispanHttpSession session = InfinispanHttpSession.lookup(store, id);
+        return (session != null) ? restore(session, store) : null;
+    }
+
+    /**
+     * Read a session from the cache within the read budget. Sessions changed while
+     * the cluster was unavailable are served from their node-local copy, and when
+     * the read budget is exceeded or the circuit breaker is open sessions are read
+     * from this node's own copy of the cache.
+     *
+     * @param   id  Session ID.
+     *
+     * @return  The session or null.
+     */
+    protected InfinispanHttpSession read(String id) {
+        InfinispanHttpSession session = degraded.get(id);
+        if (session != null) {
+            return session.isValid() ? session : null;
+        }
+
+        if (readBudget <= 0 && !breaker.isOpen()) {
+            session = InfinispanHttpSession.lookup(store, id);
+        } else if (breaker.isOpen() || (session = readWithinBudget(id)) == TIMEOUT) {
+            session = InfinispanHttpSession.lookup(localStore, id);
+            return (session != null) ? restore(session, localStore) : null;
+        }
+
+        return (session != null) ? restore(session, store) : null;
+    }
+
+    /**
+     * Restore a session's transient fields before it is returned to a request.
+     * When budgets are set invalidating the session only marks it invalid, and
+     * it is removed within the write budget when the request completes.
+     *
+     * @param   session     The session.
+     * @param   store       The {@link SessionStore} the session was read from.
+     *
+     * @return  The session.
+     */
+    private InfinispanHttpSession restore(InfinispanHttpSession session, SessionStore store) {
+        session.restore(store, context);
+        session.setRemovalDeferred(isBudgeted());
+        return session;
+    }
+
+    private InfinispanHttpSession readWithinBudget(String id) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readBudget);
+
+        InfinispanHttpSession session = await(store.getAsync(id), readBudget);
+        if (session != null && session.isAlias()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            session = await(store.getAsync(session.getKey()), Math.max(remaining, 1));
+        }
+
+        if (session == TIMEOUT) return TIMEOUT;
+        return (session != null && session.hasId(id)) ? session : null;
+    }
+
+    /**
+     * Wait for an asynchronous cache operation, recording the outcome with the
+     * circuit breaker.
+     *
+     * @param   future  Result of the operation.
+     * @param   budget  Milliseconds to wait.
+     *
+     * @return  The result, or {@link #TIMEOUT} if the operation did not complete in time.
+     */
+    private InfinispanHttpSession await(Future<InfinispanHttpSession> future, long budget) {
+        try {
+            InfinispanHttpSession result = future.get(budget, TimeUnit.MILLISECONDS);
+            breaker.success();
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.debug("Cache operation failed", e.getCause());
+        } catch (TimeoutException e) {
+            LOG.debug("Cache operation exceeded budget of {} ms", budget);
+        }
+
+        if (breaker.failure()) {
+            LOG.warn("Session cache operations exceeding latency budget, switching to node-local sessions");
+        }
+        return TIMEOUT;
+    }
+
+    /**
+     * Write sessions changed while the circuit breaker was open back to the cluster
+     * and close the breaker. A node-local change is discarded when the cluster holds
+     * a newer version of the session. Invalidated sessions are removed, and the
+     * aliases of sessions rotated while node-local are written. If the cluster is
+     * still unavailable the breaker stays open.
+     */
+    protected void reconcile() {
+        long budget = Math.max(readBudget, writeBudget);
+
+        if (degraded.isEmpty() && await(store.getAsync(RECONCILE_PROBE), budget) == TIMEOUT) {
+            breaker.reopen();
+            return;
+        }
+
+        for (InfinispanHttpSession session : degraded.values()) {
+            String key = session.getKey();
             long maxIdleTime = session.getMaxInactiveInterval();
-            cache.replace(session.getId(), session, -1, TimeUnit.SECONDS, maxIdleTime, TimeUnit.SECONDS);
+
+            InfinispanHttpSession current = await(store.getAsync(key), budget);
+            if (current == TIMEOUT) {
+                breaker.reopen();
+                return;
+            }
+
+            Future<InfinispanHttpSession> future = null;
+            if (!session.isValid()) {
+                future = store.removeAsync(key);
+            } else if (current == null || !SessionVersionInterceptor.isStale(session, current)) {
+                future = store.putAsync(key, session, maxIdleTime, maxIdleUnit);
+            } else {
+                LOG.warn("Discarding node-local changes to session {}, cluster has a newer version", session.getId());
+            }
+
+            if (future != null && await(future, budget) == TIMEOUT) {
+                breaker.reopen();
+                return;
+            }
+
+            String id = session.getId();
+            if (!id.equals(key)) {
+                if (!session.isValid()) {
+                    store.removeAsync(id);
+                } else if (!reconcileAlias(session, budget)) {
+                    breaker.reopen();
+                    return;
+                }
+            }
+
+            degraded.remove(id, session);
+            restore(session, store);
+        }
+
+        breaker.close();
+        LOG.info("Session cache recovered, reconciled node-local sessions");
+    }
+
+    /**
+     * Write the alias of a session whose ID was changed while it was node-local,
+     * unless the alias already exists.
+     *
+     * @param   session     Rotated session.
+     * @param   budget      Milliseconds to wait.
+     *
+     * @return  False if the write did not complete within the budget.
+     */
+    private boolean reconcileAlias(InfinispanHttpSession session, long budget) {
+        String id = session.getId();
+        String key = session.getKey();
+        long maxIdleTime = Math.max(session.getMaxInactiveInterval(), this.maxIdleTime);
+
+        InfinispanHttpSession existing = await(store.putIfAbsentAsync(id, InfinispanHttpSession.alias(id, key), maxIdleTime, maxIdleUnit), budget);
+        if (existing == TIMEOUT) return false;
+        if (existing != null && !(existing.isAlias() && key.equals(existing.getKey()))) {
+            LOG.warn("Session ID {} already in use, session {} is no longer reachable", id, key);
+        }
+        return true;
+    }
+
+    /**
+     * Measure a session that is about to be written to the cache and enforce the
+     * soft and hard size limits.
+     *
+     * @param   session     Session to measure.
+     *
+     * @return  True if the session may be written.
+     */
+    protected boolean checkSize(InfinispanHttpSession session) {
+        if (!isSessionSizeAccounting()) return true;
+
+        String id = session.getId();
+        Map<String, Integer> sizes = sizeTracker.measure(session);
+        int size = SessionSizeTracker.sum(sizes);
+
+        if (hardSizeLimit > 0 && size > hardSizeLimit) {
+            sizeTracker.hardLimitExceeded.incrementAndGet();
+            if (rejectOversizedSessions) {
+                LOG.warn("Session {} of {} bytes exceeds hard limit of {} bytes, not written", id, size, hardSizeLimit);
+                return false;
+            }
+
+            List<Map.Entry<String, Integer>> largest = new ArrayList<Map.Entry<String, Integer>>(sizes.entrySet());
+            Collections.sort(largest, new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+
+            for (Iterator<Map.Entry<String, Integer>> i = largest.iterator(); size > hardSizeLimit && i.hasNext(); ) {
+                Map.Entry<String, Integer> attribute = i.next();
+                session.removeAttribute(attribute.getKey());
+                size -= attribute.getValue();
+                LOG.warn("Dropped attribute {} of {} bytes from session {} exceeding hard limit", attribute.getKey(), attribute.getValue(), id);
+            }
+        }
+
+        if (softSizeLimit > 0 && size > softSizeLimit) {
+            sizeTracker.softLimitExceeded.incrementAndGet();
+            LOG.warn("Session {} of {} bytes exceeds soft limit of {} bytes", id, size, softSizeLimit);
         }
+
+        sizeTracker.record(id, size);
+        return true;
+    }
+
+    /**
+     * Access a lazily loaded session without fetching it from the cache.
+     *
+     * @param   session     Session proxy.
+     * @param   now         Current time.
+     * @param   secure      True if the request is secure.
+     *
+     * @return  The session cookie to set, or null.
+     */
+    protected HttpCookie access(InfinispanLazyHttpSession session, long now, boolean secure) {
+        session.access(now);
+
+        if (!isCookieRefreshDue(session.getCookieCreatedAt(), now)) {
+            return null;
+        }
+
+        session.setCookieCreatedAt(now);
+        return getSessionCookie(session, getContextPath(), secure);
+    }
+
+    /**
+     * Determine whether a session cookie issued at the given time must be reissued.
+     *
+     * @param   cookieCreatedAt     Time the cookie was last issued.
+     * @param   now                 Current time.
+     *
+     * @return  True if a new cookie should be set.
+     */
+    protected boolean isCookieRefreshDue(long cookieCreatedAt, long now) {
+        int maxAge = cookieConfig.maxAge;
+        if (maxAge <= 0) return false;
+        long interval = (cookieRefreshInterval >= 0) ? cookieRefreshInterval * 1000L : maxAge * 500L;
+        return now - cookieCreatedAt >= interval;
+    }
+
+    private String getContextPath() {
+        return (context == null) ? "/" : context.getContextPath();
     }
 
     @Override
@@ -260,20 +1332,110 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
     @Override
     public void doStart() throws Exception {
         context = ContextHandler.getCurrentContext();
+        if (store instanceof LifeCycle && !((LifeCycle) store).isStarted()) {
+            ((LifeCycle) store).start();
+            storeStarted = true;
+        }
         if (!idManager.isStarted()) {
             idManager.start();
         }
+        if (idManager instanceof InfinispanSessionIdManager) {
+            ((InfinispanSessionIdManager) idManager).setNodeLocal(isBudgeted());
+        }
+
+        ThreadFactory threads = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InfinispanSessionManager-" + store.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scheduler = Executors.newScheduledThreadPool(2, threads);
+        scheduler.scheduleAtFixedRate(clock, CLOCK_RESOLUTION, CLOCK_RESOLUTION, TimeUnit.MILLISECONDS);
+
+        int loaders = Runtime.getRuntime().availableProcessors() * 4;
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(loaders, loaders, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threads);
+        loader.allowCoreThreadTimeOut(true);
+        this.loader = loader;
+
+        if (versionedCookies) {
+            store.rejectStaleWrites();
+        }
+
+        if (idFilterCapacity > 0) {
+            startSessionIdFilter();
+        }
+
+        if (isBudgeted()) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (breaker.isProbeDue()) reconcile();
+                    } catch (RuntimeException e) {
+                        breaker.reopen();
+                        LOG.warn("Session reconciliation failed", e);
+                    }
+                }
+            }, CLOCK_RESOLUTION * 10, CLOCK_RESOLUTION * 10, TimeUnit.MILLISECONDS);
+        }
+
         super.doStart();
     }
 
-    @CacheEntryCreated
-    public void cacheEntryCreated(CacheEntryCreatedEvent<String, InfinispanHttpSession> e) {
-        InfinispanHttpSession session = cache.get(e.getKey());
-        if (session != null) {
-            if (!e.isOriginLocal()) session.restore(cache, context);
+    @Override
+    public void doStop() throws Exception {
+        if (scheduler != null) scheduler.shutdownNow();
+        if (loader != null) loader.shutdownNow();
+        loader = null;
+        if (idFilterListener != null) {
+            store.removeListener(idFilterListener);
+            idFilterListener = null;
+        }
+        if (idManager instanceof InfinispanSessionIdManager) {
+            ((InfinispanSessionIdManager) idManager).setFilter(null);
+        }
+        idFilter = null;
+        if (storeStarted) {
+            ((LifeCycle) store).stop();
+            storeStarted = false;
+        }
+        super.doStop();
+    }
+
+    private void startSessionIdFilter() {
+        idFilter = new SessionIdFilter(idFilterCapacity, idFilterFalsePositiveRate);
+        idFilterListener = new SessionIdFilterListener(idFilter);
+        store.addListener(idFilterListener, true);
+        rebuildSessionIdFilter();
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuildSessionIdFilter();
+                } catch (RuntimeException e) {
+                    LOG.warn("Session ID filter rebuild failed", e);
+                }
+            }
+        }, idFilterRebuildInterval, idFilterRebuildInterval, TimeUnit.SECONDS);
+
+        if (idManager instanceof InfinispanSessionIdManager) {
+            ((InfinispanSessionIdManager) idManager).setFilter(idFilter);
+        }
+    }
+
+    @Override
+    public void entryCreated(String key, boolean originLocal) {
+        if (originLocal && listeners == null) return;
+
+        InfinispanHttpSession session = store.get(key);
+        if (session != null && !session.isAlias()) {
+            if (!originLocal) session.restore(store, context);
 
             if (listeners != null) {
-                HttpSessionEvent event = new HttpSessionEvent(session);
+                HttpSessionEvent event = session.getEvent();
                 for (int i = 0; i < LazyList.size(listeners); i++) {
                     ((HttpSessionListener) LazyList.get(listeners, i)).sessionCreated(event);
                 }
@@ -281,26 +1443,59 @@ public class InfinispanSessionManager extends AbstractLifeCycle implements Sessi
         }
     }
 
-    @CacheEntryRemoved
-    public void cacheEntryRemoved(CacheEntryRemovedEvent<String, InfinispanHttpSession> e) {
-        InfinispanHttpSession session = e.getValue();
-        if (session != null && listeners != null) {
-            HttpSessionEvent event = new HttpSessionEvent(session);
+    @Override
+    public void entryRemoved(InfinispanHttpSession session) {
+        if (session.isAlias()) return;
+
+        sizeTracker.remove(session.getId());
+
+        if (listeners != null) {
+            HttpSessionEvent event = session.getEvent();
             for (int i = 0; i < LazyList.size(listeners); i++) {
                 ((HttpSessionListener) LazyList.get(listeners, i)).sessionDestroyed(event);
             }
         }
     }
 
-    @CacheEntriesEvicted
-    public void cacheEntriesEvicted(CacheEntriesEvictedEvent<String, InfinispanHttpSession> e) {
-        if (listeners != null) {
-            for (InfinispanHttpSession session : e.getEntries().values()) {
-                HttpSessionEvent event = new HttpSessionEvent(session);
-                for (int i = 0; i < LazyList.size(listeners); i++) {
-                    ((HttpSessionListener) LazyList.get(listeners, i)).sessionDestroyed(event);
-                }
-            }
+    @Override
+    public void entryPassivated(InfinispanHttpSession session) {
+        if (!session.isAlias()) session.passivate();
+    }
+
+    @Override
+    public void entryActivated(InfinispanHttpSession session) {
+        if (!session.isAlias()) {
+            session.restore(store, context);
+            session.activate();
+        }
+    }
+
+    /**
+     * Adds the IDs of sessions created on any node to a {@link SessionIdFilter}
+     * before the write that created them completes.
+     */
+    private static class SessionIdFilterListener implements SessionStoreListener {
+        private final SessionIdFilter filter;
+
+        SessionIdFilterListener(SessionIdFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void entryCreated(String key, boolean originLocal) {
+            filter.add(key);
+        }
+
+        @Override
+        public void entryRemoved(InfinispanHttpSession session) {
+        }
+
+        @Override
+        public void entryPassivated(InfinispanHttpSession session) {
+        }
+
+        @Override
+        public void entryActivated(InfinispanHttpSession session) {
         }
     }
 
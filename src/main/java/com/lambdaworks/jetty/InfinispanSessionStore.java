@@ -0,0 +1,283 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.context.Flag;
+import org.infinispan.interceptors.CallInterceptor;
+import org.infinispan.interceptors.base.CommandInterceptor;
+import org.infinispan.loaders.CacheLoader;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderManager;
+import org.infinispan.marshall.Marshaller;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.*;
+import org.infinispan.notifications.cachelistener.event.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SessionStore} backed by an Infinispan {@link Cache}, which may be local,
+ * replicated or distributed and backed up to other sites.
+ *
+ * @author  Will Glozer
+ */
+public class InfinispanSessionStore implements SessionStore {
+    private final AdvancedCache<String, InfinispanHttpSession> cache;
+    private final ConcurrentMap<SessionStoreListener, CacheListener> listeners;
+    private final boolean passivation;
+
+    /**
+     * Create a new instance. A {@link SessionVersionInterceptor} is installed in
+     * caches with cross-site backups.
+     *
+     * @param   cache   The cache to store sessions in.
+     */
+    public InfinispanSessionStore(Cache<String, InfinispanHttpSession> cache) {
+        this(cache.getAdvancedCache(), new ConcurrentHashMap<SessionStoreListener, CacheListener>());
+        if (cache.getCacheConfiguration().sites().hasEnabledBackups()) {
+            rejectStaleWrites();
+        }
+    }
+
+    private InfinispanSessionStore(AdvancedCache<String, InfinispanHttpSession> cache, ConcurrentMap<SessionStoreListener, CacheListener> listeners) {
+        this.cache = cache;
+        this.listeners = listeners;
+        this.passivation = cache.getCacheConfiguration().loaders().passivation();
+    }
+
+    public Cache<String, InfinispanHttpSession> getCache() {
+        return cache;
+    }
+
+    public Marshaller getMarshaller() {
+        return cache.getComponentRegistry().getCacheMarshaller();
+    }
+
+    @Override
+    public String getName() {
+        return cache.getName();
+    }
+
+    @Override
+    public InfinispanHttpSession get(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Check that a session exists, which restarts its idle time. In a distributed
+     * cache this fetches the session from its owner.
+     *
+     * @param   key     Session key.
+     *
+     * @return  True if the session exists.
+     */
+    @Override
+    public boolean touch(String key) {
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        cache.put(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public InfinispanHttpSession putIfAbsent(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        return cache.putIfAbsent(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public void replace(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        cache.replace(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> getAsync(String key) {
+        return cache.getAsync(key);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> putAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        return cache.putAsync(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> putIfAbsentAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        return cache.putIfAbsentAsync(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> replaceAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        return cache.replaceAsync(key, session, -1, unit, maxIdleTime, unit);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> removeAsync(String key) {
+        return cache.removeAsync(key);
+    }
+
+    /**
+     * Return the keys in memory and in the cache store.
+     *
+     * @return  Session keys.
+     */
+    @Override
+    public Iterable<String> keys() {
+        CacheLoaderManager loaders = cache.getComponentRegistry().getComponent(CacheLoaderManager.class);
+        CacheLoader loader = (loaders != null) ? loaders.getCacheLoader() : null;
+        if (loader == null) {
+            return cache.keySet();
+        }
+
+        try {
+            Set<String> keys = new HashSet<String>(cache.keySet());
+            for (Object key : loader.loadAllKeys(null)) {
+                keys.add((String) key);
+            }
+            return keys;
+        } catch (CacheLoaderException e) {
+            throw new IllegalStateException("Unable to load session keys from cache store", e);
+        }
+    }
+
+    @Override
+    public boolean holdsAllKeys() {
+        CacheMode mode = cache.getCacheConfiguration().clustering().cacheMode();
+        return !mode.isDistributed() && !mode.isInvalidation();
+    }
+
+    @Override
+    public String getSite() {
+        return cache.getCacheManager().getCacheManagerConfiguration().sites().localSite();
+    }
+
+    /**
+     * Install a {@link SessionVersionInterceptor} in the cache, unless already installed.
+     */
+    @Override
+    public void rejectStaleWrites() {
+        for (CommandInterceptor interceptor : cache.getInterceptorChain()) {
+            if (interceptor instanceof SessionVersionInterceptor) return;
+        }
+        cache.addInterceptorBefore(new SessionVersionInterceptor(), CallInterceptor.class);
+    }
+
+    @Override
+    public SessionStore local() {
+        return new InfinispanSessionStore(cache.withFlags(Flag.CACHE_MODE_LOCAL), listeners);
+    }
+
+    @Override
+    public SessionStore async() {
+        return new InfinispanSessionStore(cache.withFlags(Flag.FORCE_ASYNCHRONOUS), listeners);
+    }
+
+    @Override
+    public void addListener(SessionStoreListener listener, boolean sync) {
+        CacheListener adapter = sync ? new SyncCacheListener(listener, passivation) : new AsyncCacheListener(listener, passivation);
+        if (listeners.putIfAbsent(listener, adapter) == null) {
+            cache.addListener(adapter);
+            OffHeapCacheStore offHeap = offHeapCacheStore();
+            if (offHeap != null) offHeap.addListener(listener);
+        }
+    }
+
+    @Override
+    public void removeListener(SessionStoreListener listener) {
+        CacheListener adapter = listeners.remove(listener);
+        if (adapter != null) {
+            cache.removeListener(adapter);
+            OffHeapCacheStore offHeap = offHeapCacheStore();
+            if (offHeap != null) offHeap.removeListener(listener);
+        }
+    }
+
+    /** Internal methods **/
+
+    /**
+     * Sessions evicted from an {@link OffHeapCacheStore} are lost without any
+     * cache notification, so listeners are registered with the store directly.
+     *
+     * @return  The cache's off-heap store, or null if it has none.
+     */
+    private OffHeapCacheStore offHeapCacheStore() {
+        CacheLoaderManager loaders = cache.getComponentRegistry().getComponent(CacheLoaderManager.class);
+        CacheLoader loader = (loaders != null) ? loaders.getCacheLoader() : null;
+        return (loader instanceof OffHeapCacheStore) ? (OffHeapCacheStore) loader : null;
+    }
+
+    /**
+     * Translates cache notifications to {@link SessionStoreListener} events.
+     * Entries evicted from a cache without passivation are lost and reported as
+     * removed.
+     */
+    public static abstract class CacheListener {
+        private final SessionStoreListener listener;
+        private final boolean passivation;
+
+        CacheListener(SessionStoreListener listener, boolean passivation) {
+            this.listener = listener;
+            this.passivation = passivation;
+        }
+
+        @CacheEntryCreated
+        public void cacheEntryCreated(CacheEntryCreatedEvent<String, InfinispanHttpSession> e) {
+            if (!e.isPre()) listener.entryCreated(e.getKey(), e.isOriginLocal());
+        }
+
+        @CacheEntryRemoved
+        public void cacheEntryRemoved(CacheEntryRemovedEvent<String, InfinispanHttpSession> e) {
+            if (e.getValue() != null) listener.entryRemoved(e.getValue());
+        }
+
+        @CacheEntriesEvicted
+        public void cacheEntriesEvicted(CacheEntriesEvictedEvent<String, InfinispanHttpSession> e) {
+            if (passivation) return;
+            for (InfinispanHttpSession session : e.getEntries().values()) {
+                listener.entryRemoved(session);
+            }
+        }
+
+        @CacheEntryPassivated
+        public void cacheEntryPassivated(CacheEntryPassivatedEvent<String, InfinispanHttpSession> e) {
+            if (e.isPre() && e.getValue() != null) listener.entryPassivated(e.getValue());
+        }
+
+        @CacheEntryActivated
+        public void cacheEntryActivated(CacheEntryActivatedEvent<String, InfinispanHttpSession> e) {
+            if (!e.isPre() && e.getValue() != null) listener.entryActivated(e.getValue());
+        }
+    }
+
+    @Listener(sync = true)
+    public static class SyncCacheListener extends CacheListener {
+        SyncCacheListener(SessionStoreListener listener, boolean passivation) {
+            super(listener, passivation);
+        }
+    }
+
+    @Listener(sync = false)
+    public static class AsyncCacheListener extends CacheListener {
+        AsyncCacheListener(SessionStoreListener listener, boolean passivation) {
+            super(listener, passivation);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Single-node {@link SessionStore} that keeps sessions on the heap without
+ * marshalling them. Sessions are spread over independent stripes of
+ * {@link ConcurrentHashMap}s by the hash of their key. Reads and idle time
+ * updates are lock-free, writes lock a single segment of a single stripe.
+ * Expired sessions are removed when they are next read and by a periodic sweep
+ * over the stripes. Listeners are notified synchronously by the thread that
+ * made the change.
+ *
+ * @author  Will Glozer
+ */
+public class LocalSessionStore extends AbstractLifeCycle implements SessionStore {
+    private static final Logger LOG = Log.getLogger(LocalSessionStore.class);
+
+    private final String name;
+    private final ConcurrentMap<String, Entry>[] stripes;
+    private final int mask;
+    private final List<SessionStoreListener> listeners;
+
+    private long expirationInterval = 5000;
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Create a new instance with four stripes per processor.
+     *
+     * @param   name    Store name.
+     */
+    public LocalSessionStore(String name) {
+        this(name, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param   name        Store name.
+     * @param   stripes     Number of stripes, rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LocalSessionStore(String name, int stripes) {
+        int n = (stripes <= 1) ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.name = name;
+        this.stripes = new ConcurrentMap[n];
+        this.mask = n - 1;
+        this.listeners = new CopyOnWriteArrayList<SessionStoreListener>();
+
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new ConcurrentHashMap<String, Entry>();
+        }
+    }
+
+    public long getExpirationInterval() {
+        return expirationInterval;
+    }
+
+    /**
+     * Set the interval between sweeps for expired sessions.
+     *
+     * @param   millis  Interval in milliseconds, defaults to 5000.
+     */
+    public void setExpirationInterval(long millis) {
+        this.expirationInterval = millis;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentMap<String, Entry> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InfinispanHttpSession get(String key) {
+        Entry entry = access(key, true);
+        return (entry != null) ? entry.session : null;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return access(key, false) != null;
+    }
+
+    @Override
+    public boolean touch(String key) {
+        return access(key, true) != null;
+    }
+
+    @Override
+    public void put(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        Entry entry = new Entry(session, maxIdleTime, unit);
+        Entry old = stripe(key).put(key, entry);
+        if (old != null && !old.isExpired(entry.lastUsed)) return;
+
+        if (old != null) removed(old);
+        created(key);
+    }
+
+    @Override
+    public InfinispanHttpSession putIfAbsent(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        ConcurrentMap<String, Entry> stripe = stripe(key);
+        Entry entry = new Entry(session, maxIdleTime, unit);
+
+        Entry old;
+        while ((old = stripe.putIfAbsent(key, entry)) != null) {
+            if (!old.isExpired(entry.lastUsed)) return old.session;
+            expire(stripe, key, old);
+        }
+
+        created(key);
+        return null;
+    }
+
+    @Override
+    public void replace(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        ConcurrentMap<String, Entry> stripe = stripe(key);
+        Entry entry = new Entry(session, maxIdleTime, unit);
+
+        Entry old;
+        while ((old = stripe.get(key)) != null) {
+            if (old.isExpired(entry.lastUsed)) {
+                expire(stripe, key, old);
+                return;
+            }
+            if (stripe.replace(key, old, entry)) return;
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        Entry old = stripe(key).remove(key);
+        if (old != null) removed(old);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> getAsync(String key) {
+        return new Done(get(key));
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> putAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        put(key, session, maxIdleTime, unit);
+        return new Done(null);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> putIfAbsentAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        return new Done(putIfAbsent(key, session, maxIdleTime, unit));
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> replaceAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+        replace(key, session, maxIdleTime, unit);
+        return new Done(null);
+    }
+
+    @Override
+    public Future<InfinispanHttpSession> removeAsync(String key) {
+        remove(key);
+        return new Done(null);
+    }
+
+    /**
+     * Return a snapshot of the keys of all sessions that have not expired.
+     *
+     * @return  Session keys.
+     */
+    @Override
+    public Iterable<String> keys() {
+        long now = System.nanoTime();
+        List<String> keys = new ArrayList<String>();
+        for (ConcurrentMap<String, Entry> stripe : stripes) {
+            for (Map.Entry<String, Entry> entry : stripe.entrySet()) {
+                if (!entry.getValue().isExpired(now)) keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean holdsAllKeys() {
+        return true;
+    }
+
+    @Override
+    public String getSite() {
+        return null;
+    }
+
+    /**
+     * Writes are applied in order by the thread that makes them, so there are
+     * no stale writes to reject.
+     */
+    @Override
+    public void rejectStaleWrites() {
+    }
+
+    @Override
+    public SessionStore local() {
+        return this;
+    }
+
+    @Override
+    public SessionStore async() {
+        return this;
+    }
+
+    @Override
+    public void addListener(SessionStoreListener listener, boolean sync) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(SessionStoreListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LocalSessionStore-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire();
+                } catch (RuntimeException e) {
+                    LOG.warn("Session expiration failed", e);
+                }
+            }
+        }, expirationInterval, expirationInterval, TimeUnit.MILLISECONDS);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (reaper != null) reaper.shutdownNow();
+        reaper = null;
+        super.doStop();
+    }
+
+    /**
+     * Remove all expired sessions, one stripe at a time.
+     *
+     * @return  Number of sessions removed.
+     */
+    int expire() {
+        int expired = 0;
+        for (ConcurrentMap<String, Entry> stripe : stripes) {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Entry> entry : stripe.entrySet()) {
+                if (entry.getValue().isExpired(now) && expire(stripe, entry.getKey(), entry.getValue())) {
+                    expired++;
+                }
+            }
+        }
+        return expired;
+    }
+
+    /** Internal methods **/
+
+    private ConcurrentMap<String, Entry> stripe(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    private Entry access(String key, boolean touch) {
+        ConcurrentMap<String, Entry> stripe = stripe(key);
+        Entry entry = stripe.get(key);
+        if (entry == null) return null;
+
+        long now = System.nanoTime();
+        if (entry.isExpired(now)) {
+            expire(stripe, key, entry);
+            return null;
+        }
+
+        if (touch) entry.lastUsed = now;
+        return entry;
+    }
+
+    private boolean expire(ConcurrentMap<String, Entry> stripe, String key, Entry entry) {
+        if (!stripe.remove(key, entry)) return false;
+        removed(entry);
+        return true;
+    }
+
+    private void created(String key) {
+        for (SessionStoreListener listener : listeners) {
+            listener.entryCreated(key, true);
+        }
+    }
+
+    private void removed(Entry entry) {
+        for (SessionStoreListener listener : listeners) {
+            listener.entryRemoved(entry.session);
+        }
+    }
+
+    private static class Entry {
+        final InfinispanHttpSession session;
+        final long maxIdle;
+        volatile long lastUsed;
+
+        Entry(InfinispanHttpSession session, long maxIdleTime, TimeUnit unit) {
+            this.session = session;
+            this.maxIdle = (maxIdleTime < 0) ? -1 : unit.toNanos(maxIdleTime);
+            this.lastUsed = System.nanoTime();
+        }
+
+        boolean isExpired(long now) {
+            return maxIdle >= 0 && now - lastUsed > maxIdle;
+        }
+    }
+
+    /**
+     * Result of an operation that completed before it was returned.
+     */
+    private static class Done implements Future<InfinispanHttpSession> {
+        private final InfinispanHttpSession result;
+
+        Done(InfinispanHttpSession result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public InfinispanHttpSession get() {
+            return result;
+        }
+
+        @Override
+        public InfinispanHttpSession get(long timeout, TimeUnit unit) {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.AbstractCacheStore;
+import org.infinispan.loaders.CacheLoaderConfig;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderMetadata;
+import org.infinispan.marshall.StreamingMarshaller;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Infinispan {@link org.infinispan.loaders.CacheStore} that keeps serialized
+ * entries in off-heap memory. Combined with eviction and passivation only
+ * recently used sessions are kept on the heap, the rest are stored as bytes
+ * in direct buffers managed by the store's own block allocator:
+ *
+ * <pre>
+ * new ConfigurationBuilder()
+ *     .eviction().maxEntries(10000).strategy(EvictionStrategy.LRU)
+ *     .loaders().passivation(true).addStore().cacheStore(new OffHeapCacheStore())
+ *         .addProperty("capacity", "1073741824")
+ * </pre>
+ *
+ * When the off-heap capacity is exhausted the least recently used entries are
+ * evicted from the store and are lost. Cache listeners are not notified, instead
+ * the evicted sessions are reported to the {@link SessionStoreListener}s added to
+ * the store, which {@link InfinispanSessionStore} does for its own listeners.
+ *
+ * @author  Will Glozer
+ */
+@CacheLoaderMetadata(configurationClass = OffHeapCacheStoreConfig.class)
+public class OffHeapCacheStore extends AbstractCacheStore {
+    private OffHeapCacheStoreConfig config;
+    private OffHeapMemory memory;
+    private LinkedHashMap<Object, Slot> index;
+    private long evictions;
+    private final List<SessionStoreListener> listeners = new CopyOnWriteArrayList<SessionStoreListener>();
+
+    @Override
+    public void init(CacheLoaderConfig config, Cache<?, ?> cache, StreamingMarshaller m) throws CacheLoaderException {
+        super.init(config, cache, m);
+        this.config = (OffHeapCacheStoreConfig) config;
+    }
+
+    @Override
+    public void start() throws CacheLoaderException {
+        synchronized (this) {
+            memory = new OffHeapMemory(config.getCapacity(), config.getBlockSize(), config.getSlabSize());
+            index = new LinkedHashMap<Object, Slot>(16, 0.75f, true);
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() throws CacheLoaderException {
+        super.stop();
+        clear();
+    }
+
+    @Override
+    public Class<? extends CacheLoaderConfig> getConfigurationClass() {
+        return OffHeapCacheStoreConfig.class;
+    }
+
+    @Override
+    public InternalCacheEntry load(Object key) throws CacheLoaderException {
+        byte[] bytes;
+        synchronized (this) {
+            Slot slot = index.get(key);
+            if (slot == null) return null;
+            if (slot.isExpired(System.currentTimeMillis())) {
+                remove(key, slot);
+                return null;
+            }
+            bytes = memory.read(slot.blocks, slot.length);
+        }
+        return unmarshal(bytes);
+    }
+
+    @Override
+    public Set<InternalCacheEntry> loadAll() throws CacheLoaderException {
+        return load(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Set<InternalCacheEntry> load(int count) throws CacheLoaderException {
+        List<byte[]> values = new ArrayList<byte[]>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Slot slot : index.values()) {
+                if (values.size() >= count) break;
+                if (!slot.isExpired(now)) values.add(memory.read(slot.blocks, slot.length));
+            }
+        }
+
+        Set<InternalCacheEntry> entries = new HashSet<InternalCacheEntry>();
+        for (byte[] bytes : values) {
+            entries.add(unmarshal(bytes));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized Set<Object> loadAllKeys(Set<Object> keysToExclude) throws CacheLoaderException {
+        Set<Object> keys = new HashSet<Object>(index.keySet());
+        if (keysToExclude != null) keys.removeAll(keysToExclude);
+        return keys;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) throws CacheLoaderException {
+        Slot slot = index.get(key);
+        return slot != null && !slot.isExpired(System.currentTimeMillis());
+    }
+
+    @Override
+    public void store(InternalCacheEntry entry) throws CacheLoaderException {
+        byte[] bytes = marshal(entry);
+        long expiry = entry.canExpire() ? entry.getExpiryTime() : -1;
+        Object key = entry.getKey();
+        List<byte[]> evicted = new ArrayList<byte[]>();
+
+        synchronized (this) {
+            int count = memory.blocks(bytes.length);
+            if (count > memory.capacity()) {
+                throw new CacheLoaderException("Entry for " + key + " exceeds off-heap capacity");
+            }
+
+            Slot existing = index.remove(key);
+            if (existing != null) memory.free(existing.blocks);
+
+            Iterator<Map.Entry<Object, Slot>> lru = index.entrySet().iterator();
+            while (memory.available() < count && lru.hasNext()) {
+                Slot slot = lru.next().getValue();
+                lru.remove();
+                if (!listeners.isEmpty()) evicted.add(memory.read(slot.blocks, slot.length));
+                memory.free(slot.blocks);
+                evictions++;
+            }
+
+            int[] blocks = memory.allocate(count);
+            memory.write(blocks, bytes);
+            index.put(key, new Slot(blocks, bytes.length, expiry));
+        }
+
+        for (byte[] b : evicted) {
+            evicted(unmarshal(b));
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(Object key) throws CacheLoaderException {
+        Slot slot = index.remove(key);
+        if (slot != null) memory.free(slot.blocks);
+        return slot != null;
+    }
+
+    @Override
+    public synchronized void clear() throws CacheLoaderException {
+        if (index != null) index.clear();
+        if (memory != null) memory.clear();
+    }
+
+    @Override
+    protected synchronized void purgeInternal() throws CacheLoaderException {
+        long now = System.currentTimeMillis();
+        Iterator<Slot> i = index.values().iterator();
+        while (i.hasNext()) {
+            Slot slot = i.next();
+            if (slot.isExpired(now)) {
+                i.remove();
+                memory.free(slot.blocks);
+            }
+        }
+    }
+
+    @Override
+    public void toStream(ObjectOutput out) throws CacheLoaderException {
+        try {
+            Set<InternalCacheEntry> entries = loadAll();
+            out.writeInt(entries.size());
+            for (InternalCacheEntry entry : entries) {
+                getMarshaller().objectToObjectStream(entry, out);
+            }
+        } catch (IOException e) {
+            throw new CacheLoaderException(e);
+        }
+    }
+
+    @Override
+    public void fromStream(ObjectInput in) throws CacheLoaderException {
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                store((InternalCacheEntry) getMarshaller().objectFromObjectStream(in));
+            }
+        } catch (Exception e) {
+            throw new CacheLoaderException(e);
+        }
+    }
+
+    /**
+     * Add a listener that is notified of sessions evicted from the store when its
+     * capacity is exhausted.
+     *
+     * @param   listener    Listener to add.
+     */
+    public void addListener(SessionStoreListener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(SessionStoreListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Statistics **/
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return memory.allocatedBytes();
+    }
+
+    public synchronized long getUsedBytes() {
+        return memory.usedBytes();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void evicted(InternalCacheEntry entry) {
+        if (!(entry.getValue() instanceof InfinispanHttpSession)) return;
+        InfinispanHttpSession session = (InfinispanHttpSession) entry.getValue();
+        for (SessionStoreListener listener : listeners) {
+            listener.entryRemoved(session);
+        }
+    }
+
+    private void remove(Object key, Slot slot) {
+        index.remove(key);
+        memory.free(slot.blocks);
+    }
+
+    private byte[] marshal(InternalCacheEntry entry) throws CacheLoaderException {
+        try {
+            return getMarshaller().objectToByteBuffer(entry);
+        } catch (IOException e) {
+            throw new CacheLoaderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoaderException(e);
+        }
+    }
+
+    private InternalCacheEntry unmarshal(byte[] bytes) throws CacheLoaderException {
+        try {
+            return (InternalCacheEntry) getMarshaller().objectFromByteBuffer(bytes);
+        } catch (IOException e) {
+            throw new CacheLoaderException(e);
+        } catch (ClassNotFoundException e) {
+            throw new CacheLoaderException(e);
+        }
+    }
+
+    /**
+     * Location of a serialized entry in off-heap memory.
+     */
+    private static class Slot {
+        final int[] blocks;
+        final int length;
+        final long expiry;
+
+        Slot(int[] blocks, int length, long expiry) {
+            this.blocks = blocks;
+            this.length = length;
+            this.expiry = expiry;
+        }
+
+        boolean isExpired(long now) {
+            return expiry > 0 && now > expiry;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.infinispan.loaders.AbstractCacheStoreConfig;
+
+/**
+ * Configuration of an {@link OffHeapCacheStore}.
+ *
+ * @author  Will Glozer
+ */
+public class OffHeapCacheStoreConfig extends AbstractCacheStoreConfig {
+    private static final long serialVersionUID = -3207542211823486147L;
+
+    private long capacity = 256L * 1024 * 1024;
+    private int blockSize = 512;
+    private int slabSize = 4 * 1024 * 1024;
+
+    public OffHeapCacheStoreConfig() {
+        setCacheLoaderClassName(OffHeapCacheStore.class.getName());
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of bytes of off-heap memory used to store entries.
+     * When it is exhausted the least recently used entries are evicted.
+     *
+     * @param   capacity    Capacity in bytes.
+     */
+    public void setCapacity(long capacity) {
+        testImmutability("capacity");
+        this.capacity = capacity;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Set the size of the blocks serialized entries are stored in.
+     *
+     * @param   blockSize   Block size in bytes.
+     */
+    public void setBlockSize(int blockSize) {
+        testImmutability("blockSize");
+        this.blockSize = blockSize;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Set the size of each direct buffer allocated for blocks.
+     *
+     * @param   slabSize    Slab size in bytes.
+     */
+    public void setSlabSize(int slabSize) {
+        testImmutability("slabSize");
+        this.slabSize = slabSize;
+    }
+}
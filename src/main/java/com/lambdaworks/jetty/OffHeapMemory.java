@@ -0,0 +1,145 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size block allocator over slabs of direct {@link ByteBuffer}s. Values
+ * are stored in as many blocks as they need, so freed blocks can be reused by
+ * values of any size. Slabs are allocated lazily up to the configured capacity.
+ *
+ * This class is not thread-safe.
+ *
+ * @author  Will Glozer
+ */
+class OffHeapMemory {
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int maxBlocks;
+    private final List<ByteBuffer> slabs;
+
+    private int[] free;
+    private int freeCount;
+    private int carved;
+
+    /**
+     * Create a new instance.
+     *
+     * @param   capacity    Maximum number of bytes to allocate.
+     * @param   blockSize   Size of each block.
+     * @param   slabSize    Size of each direct buffer.
+     */
+    OffHeapMemory(long capacity, int blockSize, int slabSize) {
+        if (blockSize <= 0 || slabSize < blockSize) {
+            throw new IllegalArgumentException("Slab size must be a multiple of a positive block size");
+        }
+        this.blockSize = blockSize;
+        this.blocksPerSlab = slabSize / blockSize;
+        this.maxBlocks = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE);
+        this.slabs = new ArrayList<ByteBuffer>();
+        this.free = new int[64];
+    }
+
+    /**
+     * Return the number of blocks needed to store a value.
+     *
+     * @param   length  Length of the value.
+     *
+     * @return  Number of blocks.
+     */
+    int blocks(int length) {
+        return (length + blockSize - 1) / blockSize;
+    }
+
+    int available() {
+        return freeCount + (maxBlocks - carved);
+    }
+
+    int capacity() {
+        return maxBlocks;
+    }
+
+    long allocatedBytes() {
+        return (long) slabs.size() * blocksPerSlab * blockSize;
+    }
+
+    long usedBytes() {
+        return (long) (carved - freeCount) * blockSize;
+    }
+
+    /**
+     * Allocate blocks, reusing freed blocks before carving new ones.
+     *
+     * @param   count   Number of blocks.
+     *
+     * @return  Block indexes or null if there is not enough space.
+     */
+    int[] allocate(int count) {
+        if (count > available()) return null;
+
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (freeCount > 0) {
+                blocks[i] = free[--freeCount];
+            } else {
+                if (carved % blocksPerSlab == 0) {
+                    slabs.add(ByteBuffer.allocateDirect(blocksPerSlab * blockSize));
+                }
+                blocks[i] = carved++;
+            }
+        }
+        return blocks;
+    }
+
+    void free(int[] blocks) {
+        if (freeCount + blocks.length > free.length) {
+            int[] grown = new int[Math.max(free.length * 2, freeCount + blocks.length)];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        for (int block : blocks) {
+            free[freeCount++] = block;
+        }
+    }
+
+    void write(int[] blocks, byte[] bytes) {
+        int offset = 0;
+        for (int block : blocks) {
+            int length = Math.min(blockSize, bytes.length - offset);
+            ByteBuffer slab = slab(block);
+            slab.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    byte[] read(int[] blocks, int length) {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (int block : blocks) {
+            int n = Math.min(blockSize, length - offset);
+            ByteBuffer slab = slab(block);
+            slab.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Release all slabs, their memory is reclaimed when the buffers are collected.
+     */
+    void clear() {
+        slabs.clear();
+        freeCount = 0;
+        carved = 0;
+    }
+
+    private ByteBuffer slab(int block) {
+        ByteBuffer slab = slabs.get(block / blocksPerSlab);
+        int position = (block % blocksPerSlab) * blockSize;
+        slab.limit(position + blockSize).position(position);
+        return slab;
+    }
+}
@@ -0,0 +1,262 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bloom filter of the session IDs known to exist in a session cache. A negative
+ * answer from {@link #mightContain(String)} means the ID certainly does not exist,
+ * allowing lookups of expired or forged IDs to be answered without touching the
+ * cache. IDs are never removed, instead the filter is periodically rebuilt from
+ * the cache's keys.
+ *
+ * @author  Will Glozer
+ */
+public class SessionIdFilter {
+    private final int hashes;
+    private final long size;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile AtomicLongArray bits;
+    private volatile AtomicLongArray next;
+    private Queue<String> pending = new ConcurrentLinkedQueue<String>();
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private volatile long rebuilds;
+    private volatile long rebuildNanos;
+    private volatile long rebuildCount;
+
+    /**
+     * Create a new instance.
+     *
+     * @param   expected            Expected number of session IDs.
+     * @param   falsePositiveRate   Desired false positive rate at the expected number of IDs.
+     */
+    public SessionIdFilter(int expected, double falsePositiveRate) {
+        if (expected <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid filter size or false positive rate");
+        }
+
+        long bits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min((bits + 63) / 64, Integer.MAX_VALUE);
+
+        this.size = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+        this.bits = new AtomicLongArray(words);
+    }
+
+    /**
+     * Return true if the ID may exist, false if it certainly does not.
+     *
+     * @param   id  Session ID.
+     *
+     * @return  False if the ID has never been added.
+     */
+    public boolean mightContain(String id) {
+        lookups.incrementAndGet();
+        if (!contains(bits, id)) {
+            negatives.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add an ID to the filter, and to the filter being built if a rebuild is in
+     * progress. Otherwise the ID is kept until the next rebuild, which may not
+     * find it in the cache if it is added before the write that creates it.
+     *
+     * @param   id  Session ID.
+     */
+    public void add(String id) {
+        lock.readLock().lock();
+        try {
+            set(bits, id);
+            if (next != null) set(next, id);
+            else pending.add(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Replace the contents of the filter with the given IDs. IDs added since the
+     * previous rebuild, or concurrently with this one, are retained whether or
+     * not the given IDs include them.
+     *
+     * @param   ids     All existing session IDs.
+     */
+    public synchronized void rebuild(Iterable<?> ids) {
+        long start = System.nanoTime();
+
+        AtomicLongArray next = new AtomicLongArray(bits.length());
+        Queue<String> added;
+
+        lock.writeLock().lock();
+        try {
+            this.next = next;
+            added = pending;
+            pending = new ConcurrentLinkedQueue<String>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        long n = 0;
+        for (Object id : ids) {
+            set(next, (String) id);
+            n++;
+        }
+        for (String id : added) {
+            set(next, id);
+            n++;
+        }
+
+        lock.writeLock().lock();
+        try {
+            bits = next;
+            this.next = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        count.set(n);
+
+        rebuildNanos = System.nanoTime() - start;
+        rebuildCount = n;
+        rebuilds++;
+    }
+
+    /**
+     * Record that an ID the filter might contain did not exist.
+     */
+    void falsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    /** Statistics **/
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Return the approximate number of IDs added since the last rebuild,
+     * including repeated additions.
+     *
+     * @return  Number of IDs.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Return the theoretical false positive rate for the current number of IDs.
+     *
+     * @return  False positive probability.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-hashes * (double) count.get() / size), hashes);
+    }
+
+    /**
+     * Return the fraction of positive lookups for IDs that did not exist in the cache.
+     * This includes IDs that existed once and have since expired.
+     *
+     * @return  Observed false positive rate.
+     */
+    public double getObservedFalsePositiveRate() {
+        long positives = lookups.get() - negatives.get();
+        return positives > 0 ? (double) falsePositives.get() / positives : 0;
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getNegatives() {
+        return negatives.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    public long getLastRebuildMillis() {
+        return rebuildNanos / 1000000;
+    }
+
+    public long getLastRebuildCount() {
+        return rebuildCount;
+    }
+
+    /** Internal methods **/
+
+    private boolean contains(AtomicLongArray bits, String id) {
+        long hash = hash(id);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            long index = index(h1, h2, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void set(AtomicLongArray bits, String id) {
+        long hash = hash(id);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            long index = index(h1, h2, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long value;
+            do {
+                value = bits.get(word);
+            } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+        }
+    }
+
+    /**
+     * Derive the i-th bit index from two hashes, as described by Kirsch and
+     * Mitzenmacher in "Less Hashing, Same Performance".
+     */
+    private long index(int h1, int h2, int i) {
+        long combined = h1 + (long) i * h2;
+        if (combined < 0) combined = ~combined;
+        return combined % size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the ID's characters, finalized with the MurmurHash3 mixer.
+     */
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,23 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import javax.servlet.http.HttpSessionEvent;
+import java.util.EventListener;
+
+/**
+ * Receives notification when the ID of a session is changed by
+ * {@link InfinispanSessionManager#rotate}. This mirrors the Servlet 3.1
+ * HttpSessionIdListener, which is not available in Servlet 3.0.
+ *
+ * @author  Will Glozer
+ */
+public interface SessionIdListener extends EventListener {
+    /**
+     * Notification that a session ID has changed.
+     *
+     * @param   event           Event whose session has the new ID.
+     * @param   oldSessionId    The previous session ID.
+     */
+    void sessionIdChanged(HttpSessionEvent event, String oldSessionId);
+}
@@ -0,0 +1,189 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.infinispan.marshall.Marshaller;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized size accounting for the sessions written by an {@link InfinispanSessionManager}.
+ * Attributes are measured with the cache's own {@link Marshaller}, or with Java
+ * serialization for stores that do not marshal sessions. The size of a
+ * session is the sum of the sizes of its attributes, and the size of an attribute
+ * name is the largest value stored under it in any session. Only the largest
+ * sessions are tracked, since not every store reports sessions that expire.
+ *
+ * @author  Will Glozer
+ */
+class SessionSizeTracker {
+    private static final Comparator<Map.Entry<String, Integer>> BY_SIZE = new Comparator<Map.Entry<String, Integer>>() {
+        @Override
+        public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+            int c = a.getValue().compareTo(b.getValue());
+            return (c != 0) ? c : a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    private final Marshaller marshaller;
+    private final int capacity;
+    private final Map<String, Integer> sessions;
+    private final TreeSet<Map.Entry<String, Integer>> sessionsBySize;
+    private final ConcurrentMap<String, Integer> attributes;
+
+    final AtomicLong softLimitExceeded = new AtomicLong();
+    final AtomicLong hardLimitExceeded = new AtomicLong();
+
+    /**
+     * Create a new instance.
+     *
+     * @param   marshaller  Marshaller to measure attributes with, or null for Java serialization.
+     * @param   capacity    Number of the largest sessions to track.
+     */
+    SessionSizeTracker(Marshaller marshaller, int capacity) {
+        this.marshaller = marshaller;
+        this.capacity = capacity;
+        this.sessions = new HashMap<String, Integer>();
+        this.sessionsBySize = new TreeSet<Map.Entry<String, Integer>>(BY_SIZE);
+        this.attributes = new ConcurrentHashMap<String, Integer>();
+    }
+
+    /**
+     * Measure the serialized size of each attribute of a session and record the
+     * largest size seen for each attribute name.
+     *
+     * @param   session     Session to measure.
+     *
+     * @return  Serialized size of each attribute.
+     */
+    Map<String, Integer> measure(InfinispanHttpSession session) {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (Map.Entry<String, Object> entry : session.getAttributeMap().entrySet()) {
+            String name = entry.getKey();
+            int size = sizeOf(entry.getValue());
+            sizes.put(name, size);
+
+            Integer max = attributes.putIfAbsent(name, size);
+            while (max != null && max < size && !attributes.replace(name, max, size)) {
+                max = attributes.get(name);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Record the size of a session, evicting the smallest tracked session when
+     * the tracker is full.
+     *
+     * @param   id      Session ID.
+     * @param   size    Serialized size.
+     */
+    synchronized void record(String id, int size) {
+        remove(id);
+        if (sessions.size() >= capacity) {
+            if (capacity <= 0 || sessionsBySize.first().getValue() >= size) return;
+            remove(sessionsBySize.first().getKey());
+        }
+        sessions.put(id, size);
+        sessionsBySize.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(id, size));
+    }
+
+    synchronized void remove(String id) {
+        Integer size = sessions.remove(id);
+        if (size != null) sessionsBySize.remove(new AbstractMap.SimpleImmutableEntry<String, Integer>(id, size));
+    }
+
+    synchronized void rename(String id, String newId) {
+        Integer size = sessions.get(id);
+        if (size != null) {
+            remove(id);
+            record(newId, size);
+        }
+    }
+
+    synchronized Map<String, Integer> largestSessions(int n) {
+        Map<String, Integer> largest = new LinkedHashMap<String, Integer>();
+        Iterator<Map.Entry<String, Integer>> i = sessionsBySize.descendingIterator();
+        while (largest.size() < n && i.hasNext()) {
+            Map.Entry<String, Integer> entry = i.next();
+            largest.put(entry.getKey(), entry.getValue());
+        }
+        return largest;
+    }
+
+    synchronized int trackedSessions() {
+        return sessions.size();
+    }
+
+    Map<String, Integer> largestAttributes(int n) {
+        return largest(attributes, n);
+    }
+
+    static int sum(Map<String, Integer> sizes) {
+        int total = 0;
+        for (int size : sizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    private int sizeOf(Object value) {
+        try {
+            if (marshaller == null) return serializedSize(value);
+            return marshaller.objectToBuffer(value).getLength();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to serialize session attribute", e);
+        }
+    }
+
+    private static int serializedSize(Object value) throws IOException {
+        final int[] size = new int[1];
+        ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                size[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                size[0] += len;
+            }
+        });
+        out.writeObject(value);
+        out.close();
+        return size[0];
+    }
+
+    /**
+     * Select the n largest entries of a size map with a bounded min-heap.
+     */
+    private static Map<String, Integer> largest(Map<String, Integer> sizes, int n) {
+        PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<Map.Entry<String, Integer>>(Math.max(n, 1), BY_SIZE);
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            if (heap.size() < n) {
+                heap.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(entry));
+            } else if (n > 0 && entry.getValue() > heap.peek().getValue()) {
+                heap.poll();
+                heap.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(entry));
+            }
+        }
+
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(heap);
+        Collections.sort(entries, Collections.reverseOrder(BY_SIZE));
+
+        Map<String, Integer> largest = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            largest.put(entry.getKey(), entry.getValue());
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage for the sessions of an {@link InfinispanSessionManager}. Sessions are
+ * stored under their key with a maximum idle time, and expire when they have not
+ * been read or touched for longer than that. A negative maximum idle time means
+ * the session never expires.
+ *
+ * @author  Will Glozer
+ */
+public interface SessionStore {
+    /**
+     * Return the name of the store, used to name the threads of the session manager.
+     *
+     * @return  Store name.
+     */
+    String getName();
+
+    /**
+     * Fetch a session and restart its idle time.
+     *
+     * @param   key     Session key.
+     *
+     * @return  The session or null if it does not exist.
+     */
+    InfinispanHttpSession get(String key);
+
+    boolean containsKey(String key);
+
+    /**
+     * Restart the idle time of a session without fetching it.
+     *
+     * @param   key     Session key.
+     *
+     * @return  True if the session exists.
+     */
+    boolean touch(String key);
+
+    void put(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    /**
+     * Store a session only if no session exists under its key.
+     *
+     * @param   key             Session key.
+     * @param   session         Session to store.
+     * @param   maxIdleTime     Maximum idle time.
+     * @param   unit            Unit of the maximum idle time.
+     *
+     * @return  The existing session, or null if the session was stored.
+     */
+    InfinispanHttpSession putIfAbsent(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    /**
+     * Store a session only if a session already exists under its key.
+     *
+     * @param   key             Session key.
+     * @param   session         Session to store.
+     * @param   maxIdleTime     Maximum idle time.
+     * @param   unit            Unit of the maximum idle time.
+     */
+    void replace(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    void remove(String key);
+
+    Future<InfinispanHttpSession> getAsync(String key);
+
+    Future<InfinispanHttpSession> putAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    Future<InfinispanHttpSession> putIfAbsentAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    Future<InfinispanHttpSession> replaceAsync(String key, InfinispanHttpSession session, long maxIdleTime, TimeUnit unit);
+
+    Future<InfinispanHttpSession> removeAsync(String key);
+
+    /**
+     * Return the keys of all sessions, including any held in secondary storage.
+     *
+     * @return  Session keys.
+     *
+     * @throws  IllegalStateException if the keys cannot be read.
+     */
+    Iterable<String> keys();
+
+    /**
+     * Return true if this node holds every session, which allows the keys to be
+     * used to answer whether a session exists without consulting other nodes.
+     *
+     * @return  True if every key is held locally.
+     */
+    boolean holdsAllKeys();
+
+    /**
+     * Return the name of the site this node belongs to, used to order concurrent
+     * writes to the same session from different sites.
+     *
+     * @return  Site name or null.
+     */
+    String getSite();
+
+    /**
+     * Reject writes of sessions older than the copy already stored, which may
+     * arrive late or out of order when the store replicates asynchronously.
+     */
+    void rejectStaleWrites();
+
+    /**
+     * Return a view of this store that only reads and writes this node's copy
+     * of the sessions.
+     *
+     * @return  Node-local view.
+     */
+    SessionStore local();
+
+    /**
+     * Return a view of this store that replicates writes asynchronously.
+     *
+     * @return  Asynchronous view.
+     */
+    SessionStore async();
+
+    /**
+     * Register a listener for changes made to the store by any node. A synchronous
+     * listener is notified before the write completes.
+     *
+     * @param   listener    Listener to add.
+     * @param   sync        True to notify the listener synchronously.
+     */
+    void addListener(SessionStoreListener listener, boolean sync);
+
+    void removeListener(SessionStoreListener listener);
+}
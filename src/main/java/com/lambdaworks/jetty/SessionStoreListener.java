@@ -0,0 +1,39 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+/**
+ * Listener for the sessions created and removed in a {@link SessionStore}.
+ *
+ * @author  Will Glozer
+ */
+public interface SessionStoreListener {
+    /**
+     * A session was stored under a new key.
+     *
+     * @param   key         Session key.
+     * @param   originLocal True if the session was created by this node.
+     */
+    void entryCreated(String key, boolean originLocal);
+
+    /**
+     * A session was removed, or expired.
+     *
+     * @param   session     The removed session.
+     */
+    void entryRemoved(InfinispanHttpSession session);
+
+    /**
+     * A session is about to be moved to secondary storage.
+     *
+     * @param   session     The session.
+     */
+    void entryPassivated(InfinispanHttpSession session);
+
+    /**
+     * A session was loaded from secondary storage.
+     *
+     * @param   session     The session.
+     */
+    void entryActivated(InfinispanHttpSession session);
+}
@@ -0,0 +1,104 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.infinispan.commands.write.PutKeyValueCommand;
+import org.infinispan.commands.write.RemoveCommand;
+import org.infinispan.commands.write.ReplaceCommand;
+import org.infinispan.container.entries.CacheEntry;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.BaseCustomInterceptor;
+
+/**
+ * Infinispan interceptor that rejects writes of an {@link InfinispanHttpSession}
+ * older than the copy already stored. Sessions written concurrently in different
+ * sites with the same version are ordered by site name so that all sites converge
+ * on the same copy once cross-site backups have been applied. A removed session
+ * is replaced by a short-lived {@link InfinispanHttpSession#tombstone(String) tombstone}
+ * so that writes of the session arriving after the removal are rejected rather
+ * than recreating it.
+ *
+ * @author  Will Glozer
+ */
+public class SessionVersionInterceptor extends BaseCustomInterceptor {
+    private final long tombstoneLifespan;
+
+    /**
+     * Create a new instance that keeps tombstones for one minute.
+     */
+    public SessionVersionInterceptor() {
+        this(60000);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param   tombstoneLifespan   Milliseconds to keep tombstones of removed sessions,
+     *                              which must exceed the delay of cross-site backups.
+     */
+    public SessionVersionInterceptor(long tombstoneLifespan) {
+        this.tombstoneLifespan = tombstoneLifespan;
+    }
+
+    @Override
+    public Object visitPutKeyValueCommand(InvocationContext ctx, PutKeyValueCommand command) throws Throwable {
+        CacheEntry entry = ctx.lookupEntry(command.getKey());
+        if (entry != null && isStale(command.getValue(), entry.getValue())) {
+            return entry.getValue();
+        }
+        return invokeNextInterceptor(ctx, command);
+    }
+
+    @Override
+    public Object visitReplaceCommand(InvocationContext ctx, ReplaceCommand command) throws Throwable {
+        CacheEntry entry = ctx.lookupEntry(command.getKey());
+        if (entry != null && isStale(command.getNewValue(), entry.getValue())) {
+            return command.getOldValue() != null ? false : entry.getValue();
+        }
+        return invokeNextInterceptor(ctx, command);
+    }
+
+    @Override
+    public Object visitRemoveCommand(InvocationContext ctx, RemoveCommand command) throws Throwable {
+        Object removed = invokeNextInterceptor(ctx, command);
+
+        CacheEntry entry = ctx.lookupEntry(command.getKey());
+        if (entry != null && entry.isRemoved() && removed instanceof InfinispanHttpSession
+                && !((InfinispanHttpSession) removed).isAlias()) {
+            // listeners have been notified of the removal, store a tombstone instead
+            entry.setRemoved(false);
+            entry.setValid(true);
+            entry.setValue(InfinispanHttpSession.tombstone((String) command.getKey()));
+            entry.setLifespan(tombstoneLifespan);
+            entry.setMaxIdle(-1);
+        }
+        return removed;
+    }
+
+    /**
+     * Determine whether a session being written is older than the stored copy.
+     *
+     * @param   value       Session being written.
+     * @param   existing    Session currently stored.
+     *
+     * @return  True if the write must be rejected.
+     */
+    static boolean isStale(Object value, Object existing) {
+        if (!(value instanceof InfinispanHttpSession) || !(existing instanceof InfinispanHttpSession)) {
+            return false;
+        }
+
+        InfinispanHttpSession session = (InfinispanHttpSession) value;
+        InfinispanHttpSession stored  = (InfinispanHttpSession) existing;
+
+        if (session == stored) return false;
+
+        if (session.getVersion() != stored.getVersion()) {
+            return session.getVersion() < stored.getVersion();
+        }
+
+        String site = session.getSite();
+        String storedSite = stored.getSite();
+        return site != null && storedSite != null && site.compareTo(storedSite) < 0;
+    }
+}
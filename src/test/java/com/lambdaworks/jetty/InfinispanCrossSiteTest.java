@@ -0,0 +1,203 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.CacheException;
+import org.infinispan.configuration.cache.BackupConfiguration.BackupStrategy;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfiguration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.*;
+
+import javax.servlet.http.HttpSession;
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two in-JVM sites, LON and NYC, on local-only JGroups stacks. Each site backs
+ * up to the other asynchronously over a bridge that delays every message.
+ */
+public class InfinispanCrossSiteTest {
+    private static final long BRIDGE_DELAY = 200;
+
+    private EmbeddedCacheManager lonManager;
+    private EmbeddedCacheManager nycManager;
+    private Cache<String, InfinispanHttpSession> lon;
+    private Cache<String, InfinispanHttpSession> nyc;
+    private InfinispanSessionManager lonIsm;
+    private InfinispanSessionManager nycIsm;
+
+    @Before
+    public void setUp() throws Exception {
+        lonManager = site("LON", "NYC");
+        nycManager = site("NYC", "LON");
+        lon = lonManager.getCache("sessions");
+        nyc = nycManager.getCache("sessions");
+
+        lonIsm = new InfinispanSessionManager(lon);
+        lonIsm.setMaxInactiveInterval(100);
+        lonIsm.start();
+
+        nycIsm = new InfinispanSessionManager(nyc);
+        nycIsm.setMaxInactiveInterval(100);
+        nycIsm.start();
+
+        awaitBridge();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lonIsm.stop();
+        nycIsm.stop();
+        stop(lon);
+        stop(nyc);
+        lonManager.stop();
+        nycManager.stop();
+    }
+
+    @Test
+    public void sessionBackedUpToRemoteSite() throws Exception {
+        HttpSession session = lonIsm.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        lonIsm.complete(session);
+
+        InfinispanHttpSession backup = await(nyc, session.getId(), 2);
+        assertEquals("1", backup.getAttribute("a"));
+        assertEquals("LON", backup.getSite());
+    }
+
+    @Test
+    public void requestLatencyUnaffectedByRemoteSite() throws Exception {
+        int requests = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            HttpSession session = lonIsm.newHttpSession(new Request());
+            session.setAttribute("a", i);
+            lonIsm.complete(session);
+            assertEquals(session, lonIsm.getHttpSession(session.getId()));
+        }
+        long average = (System.nanoTime() - start) / requests / 1000000;
+        assertTrue("average request latency " + average + "ms", average < BRIDGE_DELAY / 4);
+    }
+
+    @Test
+    public void staleRemoteWriteRejected() throws Exception {
+        HttpSession session = lonIsm.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        lonIsm.complete(session);
+        InfinispanHttpSession stale = copy(await(nyc, session.getId(), 2));
+
+        session.setAttribute("a", "2");
+        lonIsm.complete(session);
+        await(nyc, session.getId(), 3);
+
+        nyc.put(session.getId(), stale);
+        assertEquals("2", nyc.get(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void lateRemoteWriteDoesNotRecreateRemovedSession() throws Exception {
+        HttpSession session = lonIsm.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        lonIsm.complete(session);
+        String id = session.getId();
+
+        InfinispanHttpSession late = copy(await(nyc, id, 2));
+        late.stamp("NYC");
+
+        session.invalidate();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (nycIsm.getHttpSession(id) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(nycIsm.getHttpSession(id));
+
+        nyc.put(id, late);
+        assertNull(nycIsm.getHttpSession(id));
+        assertNull(lonIsm.getHttpSession(id));
+    }
+
+    @Test
+    public void concurrentWritesOrderedBySite() throws Exception {
+        InfinispanHttpSession lonCopy = new InfinispanHttpSession("id", 100);
+        InfinispanHttpSession nycCopy = new InfinispanHttpSession("id", 100);
+        lonCopy.stamp("LON");
+        nycCopy.stamp("NYC");
+
+        assertTrue(SessionVersionInterceptor.isStale(lonCopy, nycCopy));
+        assertFalse(SessionVersionInterceptor.isStale(nycCopy, lonCopy));
+
+        lonCopy.stamp("LON");
+        assertFalse(SessionVersionInterceptor.isStale(lonCopy, nycCopy));
+        assertTrue(SessionVersionInterceptor.isStale(nycCopy, lonCopy));
+    }
+
+    private EmbeddedCacheManager site(String name, String backup) {
+        GlobalConfiguration global = new GlobalConfigurationBuilder()
+            .transport().defaultTransport()
+                .clusterName("ism-" + name)
+                .addProperty("configurationFile", "jgroups-xsite-" + name.toLowerCase() + ".xml")
+            .site().localSite(name)
+            .globalJmxStatistics().allowDuplicateDomains(true)
+            .build();
+
+        Configuration config = new ConfigurationBuilder()
+            .clustering().cacheMode(CacheMode.DIST_SYNC)
+            .sites().addBackup().site(backup).strategy(BackupStrategy.ASYNC)
+            .build();
+
+        EmbeddedCacheManager manager = new DefaultCacheManager(global);
+        manager.defineConfiguration("sessions", config);
+        return manager;
+    }
+
+    /**
+     * Stop a cache that has received backups, Infinispan 5.2 throws a NPE from the
+     * backup receiver's cache stopped listener after the cache itself is stopped.
+     */
+    private void stop(Cache<String, InfinispanHttpSession> cache) {
+        try {
+            cache.stop();
+        } catch (CacheException e) {
+            if (!(e.getCause() instanceof NullPointerException)) throw e;
+        }
+    }
+
+    private void awaitBridge() throws Exception {
+        InfinispanHttpSession probe = new InfinispanHttpSession("probe", 100);
+        probe.stamp("LON");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            lon.put(probe.getId(), probe);
+            Thread.sleep(BRIDGE_DELAY);
+            if (nyc.containsKey(probe.getId())) return;
+        }
+        throw new AssertionError("sites not bridged");
+    }
+
+    private InfinispanHttpSession await(Cache<String, InfinispanHttpSession> cache, String id, long version) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            InfinispanHttpSession session = cache.get(id);
+            if (session != null && session.getVersion() >= version) return session;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("session " + id + " version " + version + " not replicated");
+    }
+
+    private InfinispanHttpSession copy(InfinispanHttpSession session) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(session);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return (InfinispanHttpSession) in.readObject();
+    }
+}
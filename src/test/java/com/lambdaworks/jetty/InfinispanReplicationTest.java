@@ -0,0 +1,213 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfiguration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.*;
+
+import javax.servlet.http.HttpSession;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two in-JVM nodes of a replicated cache on a local-only JGroups stack that
+ * delays every message by up to {@link #DELAY} ms, with versioned cookies enabled.
+ */
+public class InfinispanReplicationTest {
+    private static final long DELAY = 200;
+
+    private EmbeddedCacheManager managerA;
+    private EmbeddedCacheManager managerB;
+    private CookieCapturingSessionManager ismA;
+    private InfinispanSessionManager ismB;
+
+    @Before
+    public void setUp() throws Exception {
+        managerA = node("A");
+        managerB = node("B");
+        Cache<String, InfinispanHttpSession> a = managerA.getCache("sessions");
+        Cache<String, InfinispanHttpSession> b = managerB.getCache("sessions");
+
+        ismA = new CookieCapturingSessionManager(a);
+        ismA.setMaxInactiveInterval(100);
+        ismA.setVersionedCookies(true);
+        ismA.start();
+
+        ismB = new InfinispanSessionManager(b);
+        ismB.setMaxInactiveInterval(100);
+        ismB.setVersionedCookies(true);
+        ismB.setVersionWaitTime(5000);
+        ismB.start();
+
+        awaitCluster();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ismA.stop();
+        ismB.stop();
+        managerA.stop();
+        managerB.stop();
+    }
+
+    @Test
+    public void versionCookieReadsOwnWrites() throws Exception {
+        HttpSession session = ismA.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+
+        long start = System.currentTimeMillis();
+        ismA.complete(session);
+        assertTrue(System.currentTimeMillis() - start < DELAY / 2);
+
+        String cookie = ismA.cookie;
+        assertEquals(session.getId() + "." + ((InfinispanHttpSession) session).getVersion(), cookie);
+
+        assertEquals("1", ismB.getHttpSession(cookie).getAttribute("a"));
+        assertEquals(0, ismB.getStaleReads());
+    }
+
+    @Test
+    public void versionNotReplicatedInTime() throws Exception {
+        HttpSession session = ismA.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        ismA.complete(session);
+
+        String id = session.getId();
+        assertEquals("1", ismB.getHttpSession(ismA.cookie).getAttribute("a"));
+
+        ismB.setVersionWaitTime(10);
+
+        HttpSession stale = ismB.getHttpSession(id + ".1000");
+        assertEquals("1", stale.getAttribute("a"));
+        assertEquals(1, ismB.getStaleReads());
+
+        assertNull(ismB.getHttpSession(id + ".x"));
+    }
+
+    @Test
+    public void committedResponseWritesSynchronously() throws Exception {
+        ismA.committed = true;
+
+        HttpSession session = ismA.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+
+        ismA.complete(session);
+
+        assertNull(ismA.cookie);
+        assertEquals("1", ismB.getHttpSession(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void versionCookieBypassesIdFilter() throws Exception {
+        ismB.stop();
+        ismB.setSessionIdFilterCapacity(1000);
+        ismB.start();
+
+        HttpSession session = ismA.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        ismA.complete(session);
+
+        assertEquals("1", ismB.getHttpSession(ismA.cookie).getAttribute("a"));
+        assertNull(ismB.getHttpSession("forged"));
+    }
+
+    @Test
+    public void forgedVersionedIdNotAwaited() throws Exception {
+        long start = System.currentTimeMillis();
+        assertNull(ismB.getHttpSession("forged.1"));
+        assertTrue(System.currentTimeMillis() - start < DELAY);
+
+        ismB.stop();
+        ismB.setSessionIdFilterCapacity(1000);
+        ismB.start();
+
+        start = System.currentTimeMillis();
+        for (int i = 1; i <= 10; i++) {
+            assertNull(ismB.getHttpSession("forged." + i));
+        }
+        assertTrue(System.currentTimeMillis() - start < DELAY);
+        assertEquals(10, ismB.getSessionIdFilter().getNegatives());
+        assertEquals(0, ismB.getStaleReads());
+    }
+
+    @Test
+    public void invalidatedSessionNotRecreated() throws Exception {
+        HttpSession session = ismA.newHttpSession(new Request());
+        session.setAttribute("a", "1");
+        ismA.complete(session);
+        String id = session.getId();
+
+        HttpSession remote = ismB.getHttpSession(ismA.cookie);
+        ismA.access(session, false);
+        session.setAttribute("a", "2");
+        remote.invalidate();
+        ismA.complete(session);
+
+        Thread.sleep(DELAY);
+        assertNull(ismA.getHttpSession(id));
+        assertNull(ismB.getHttpSession(id));
+    }
+
+    /**
+     * Session manager that records versioned cookies instead of adding them to
+     * the response of the current request.
+     */
+    public static class CookieCapturingSessionManager extends InfinispanSessionManager {
+        volatile boolean committed;
+        volatile String cookie;
+
+        public CookieCapturingSessionManager(Cache<String, InfinispanHttpSession> cache) {
+            super(cache);
+        }
+
+        @Override
+        protected boolean sendVersionCookie(InfinispanHttpSession session) {
+            if (committed) return false;
+            cookie = getSessionCookie(session, "/", false).getValue();
+            return true;
+        }
+    }
+
+    private EmbeddedCacheManager node(String name) {
+        GlobalConfiguration global = new GlobalConfigurationBuilder()
+            .transport().defaultTransport()
+                .clusterName("ism-repl")
+                .nodeName(name)
+                .addProperty("configurationFile", "jgroups-repl.xml")
+            .globalJmxStatistics().allowDuplicateDomains(true)
+            .build();
+
+        Configuration config = new ConfigurationBuilder()
+            .clustering().cacheMode(CacheMode.REPL_SYNC)
+            .build();
+
+        EmbeddedCacheManager manager = new DefaultCacheManager(global);
+        manager.defineConfiguration("sessions", config);
+        return manager;
+    }
+
+    private void awaitCluster() throws Exception {
+        Cache<String, InfinispanHttpSession> a = managerA.getCache("sessions");
+        Cache<String, InfinispanHttpSession> b = managerB.getCache("sessions");
+
+        InfinispanHttpSession probe = new InfinispanHttpSession("probe", 100);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            a.put(probe.getId(), probe);
+            if (b.containsKey(probe.getId())) {
+                a.remove(probe.getId());
+                return;
+            }
+            Thread.sleep(DELAY);
+        }
+        throw new AssertionError("nodes not clustered");
+    }
+}
@@ -5,12 +5,19 @@ package com.lambdaworks.jetty;
 import org.eclipse.jetty.http.HttpCookie;
 import org.eclipse.jetty.server.Request;
 import org.infinispan.Cache;
+import org.infinispan.commands.FlagAffectedCommand;
+import org.infinispan.commands.VisitableCommand;
+import org.infinispan.context.Flag;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.BaseCustomInterceptor;
 import org.infinispan.manager.CacheContainer;
 import org.infinispan.manager.DefaultCacheManager;
 import org.junit.*;
 
 import javax.servlet.http.*;
 
+import java.lang.management.ManagementFactory;
+import java.util.*;
 import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
@@ -33,6 +40,7 @@ public class InfinispanSessionManagerTest {
 
     @After
     public void tearDown() throws Exception {
+        ism.stop();
         cacheManager.stop();
     }
 
@@ -82,10 +90,579 @@ public class InfinispanSessionManagerTest {
         assertEquals(session, adapter.destroyed.take());
     }
 
+    @Test
+    public void lazyHttpSession() throws Exception {
+        PartitionedSessionStore store = new PartitionedSessionStore();
+        InfinispanSessionManager manager = lazyManager(store);
+
+        try {
+            HttpSession session = manager.newHttpSession(req());
+            session.setAttribute("a", "1");
+            manager.complete(session);
+
+            InfinispanLazyHttpSession lazy = (InfinispanLazyHttpSession) manager.getHttpSession(session.getId());
+            assertEquals(session.getId(), lazy.getId());
+            assertTrue(manager.isValid(lazy));
+            assertFalse(lazy.isNew());
+            manager.access(lazy, false);
+            manager.complete(lazy);
+
+            assertEquals("1", lazy.getAttribute("a"));
+            assertEquals(session, lazy.getLoadedSession());
+            lazy.setAttribute("a", "2");
+            manager.complete(lazy);
+            assertEquals("2", store.get(session.getId()).getAttribute("a"));
+
+            HttpSession missing = manager.getHttpSession("missing");
+            assertNull(missing.getAttribute("a"));
+            assertFalse(manager.isValid(missing));
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void lazyLoadingReturnsSessionFromLocalMemory() throws Exception {
+        HttpSession session = ism.newHttpSession(req());
+        ism.setLazyLoading(true);
+        assertSame(session, ism.getHttpSession(session.getId()));
+        assertNull(ism.getHttpSession("missing"));
+    }
+
+    @Test
+    public void lazyHttpSessionInvalidate() throws Exception {
+        PartitionedSessionStore store = new PartitionedSessionStore();
+        InfinispanSessionManager manager = lazyManager(store);
+
+        try {
+            HttpSession session = manager.newHttpSession(req());
+            HttpSession lazy = manager.getHttpSession(session.getId());
+            lazy.invalidate();
+            assertFalse(manager.isValid(lazy));
+            assertNull(store.get(session.getId()));
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void lazyRotatedSession() throws Exception {
+        PartitionedSessionStore store = new PartitionedSessionStore();
+        InfinispanSessionManager manager = new InfinispanSessionManager(store);
+        manager.setMaxInactiveInterval(200, TimeUnit.MILLISECONDS);
+        manager.setLazyLoading(true);
+        manager.start();
+
+        try {
+            HttpSession session = manager.newHttpSession(req());
+            session.setAttribute("a", "1");
+            manager.complete(session);
+            String first = session.getId();
+
+            manager.rotate(session, insecureReq(first));
+            manager.complete(session);
+            String second = session.getId();
+
+            HttpSession old = manager.getHttpSession(first);
+            assertNull(old.getAttribute("a"));
+            assertFalse(manager.isValid(old));
+
+            for (int i = 0; i < 6; i++) {
+                Thread.sleep(60);
+                HttpSession lazy = manager.getHttpSession(second);
+                assertEquals("1", lazy.getAttribute("a"));
+                assertTrue(manager.isValid(lazy));
+                manager.complete(lazy);
+            }
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void deferNewSessions() throws Exception {
+        ism.setDeferNewSessions(true);
+
+        HttpSession empty = ism.newHttpSession(req());
+        assertNull(cache.get(empty.getId()));
+        assertEquals(empty, ism.getHttpSession(empty.getId()));
+        ism.complete(empty);
+        assertNull(cache.get(empty.getId()));
+        assertNull(ism.getHttpSession(empty.getId()));
+
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("a", "1");
+        ism.complete(session);
+        assertEquals(session, cache.get(session.getId()));
+
+        HttpSession retained = ism.newHttpSession(req());
+        ism.retain(retained);
+        ism.complete(retained);
+        assertEquals(retained, cache.get(retained.getId()));
+    }
+
+    @Test
+    public void deferredSessionInvalidate() throws Exception {
+        ism.setDeferNewSessions(true);
+        HttpSession session = ism.newHttpSession(req());
+        session.invalidate();
+        assertFalse(ism.isValid(session));
+        assertNull(ism.getHttpSession(session.getId()));
+    }
+
+    @Test
+    public void promoteSession() throws Exception {
+        ism.setMaxInactiveInterval(60000, TimeUnit.MILLISECONDS);
+        ism.setAnonymousMaxInactiveInterval(200);
+
+        HttpSession anonymous = ism.newHttpSession(req());
+        HttpSession session = ism.newHttpSession(req());
+        assertEquals(200, session.getMaxInactiveInterval());
+
+        ism.promote(session);
+        ism.complete(session);
+        assertEquals(60000, session.getMaxInactiveInterval());
+
+        Thread.sleep(300);
+        assertNull(ism.getHttpSession(anonymous.getId()));
+        assertEquals(session, ism.getHttpSession(session.getId()));
+    }
+
+    @Test
+    public void accessRefreshesCookie() throws Exception {
+        ism.getSessionCookieConfig().setMaxAge(2);
+        ism.setSessionCookieRefreshInterval(0);
+        HttpSession session = ism.newHttpSession(req());
+        Thread.sleep(50);
+
+        HttpCookie cookie = ism.access(session, false);
+        assertEquals(session.getId(), cookie.getValue());
+        assertSame(cookie, ism.access(session, false));
+
+        ism.setSessionCookieRefreshInterval(1);
+        assertNull(ism.access(session, false));
+        Thread.sleep(1100);
+        assertSame(cookie, ism.access(session, false));
+        assertNotSame(cookie, ism.access(session, true));
+    }
+
+    @Test
+    public void accessAllocationFree() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        ism.getSessionCookieConfig().setMaxAge(3600);
+        HttpSession session = ism.newHttpSession(req());
+        for (int i = 0; i < 100000; i++) {
+            ism.access(session, false);
+            ism.complete(session);
+        }
+
+        int requests = 1000000;
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < requests; i++) {
+            ism.access(session, false);
+            ism.complete(session);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue(allocated + " bytes allocated by " + requests + " requests", allocated < 1024);
+    }
+
+    @Test
+    public void sessionSizeAccounting() throws Exception {
+        ism.setSessionSizeAccounting(true);
+
+        HttpSession small = ism.newHttpSession(req());
+        small.setAttribute("small", new byte[100]);
+        ism.complete(small);
+
+        HttpSession large = ism.newHttpSession(req());
+        large.setAttribute("small", new byte[10]);
+        large.setAttribute("large", new byte[1000]);
+        ism.complete(large);
+
+        Map<String, Integer> sessions = ism.getLargestSessions(1);
+        assertEquals(1, sessions.size());
+        assertTrue(sessions.get(large.getId()) > 1010);
+
+        List<String> attributes = new ArrayList<String>(ism.getLargestAttributes(10).keySet());
+        assertEquals(Arrays.asList("large", "small"), attributes);
+        assertTrue(ism.getLargestAttributes(10).get("small") > 100);
+
+        large.invalidate();
+        for (int i = 0; i < 100 && ism.getLargestSessions(10).containsKey(large.getId()); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(ism.getLargestSessions(10).containsKey(large.getId()));
+    }
+
+    @Test
+    public void sessionSizeTrackerBounded() throws Exception {
+        SessionSizeTracker tracker = new SessionSizeTracker(null, 2);
+        tracker.record("a", 10);
+        tracker.record("b", 30);
+        tracker.record("c", 20);
+        tracker.record("d", 5);
+        assertEquals(2, tracker.trackedSessions());
+
+        tracker.rename("c", "e");
+        tracker.record("b", 1);
+        assertEquals(Arrays.asList("e", "b"), new ArrayList<String>(tracker.largestSessions(10).keySet()));
+
+        tracker.record("f", 40);
+        assertEquals(Arrays.asList("f", "e"), new ArrayList<String>(tracker.largestSessions(10).keySet()));
+    }
+
+    @Test
+    public void sessionSizeHardLimitDropsLargestAttribute() throws Exception {
+        ism.setSessionSizeSoftLimit(500);
+        ism.setSessionSizeHardLimit(1000);
+
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("small", new byte[100]);
+        session.setAttribute("medium", new byte[600]);
+        session.setAttribute("large", new byte[800]);
+        ism.complete(session);
+
+        assertNull(session.getAttribute("large"));
+        assertNotNull(session.getAttribute("medium"));
+        assertNotNull(session.getAttribute("small"));
+        assertEquals(1, ism.getSessionSizeHardLimitExceeded());
+        assertEquals(1, ism.getSessionSizeSoftLimitExceeded());
+    }
+
+    @Test
+    public void sessionSizeHardLimitRejects() throws Exception {
+        ism.setSessionSizeHardLimit(1000);
+        ism.setRejectOversizedSessions(true);
+
+        InfinispanHttpSession session = (InfinispanHttpSession) ism.newHttpSession(req());
+        long version = session.getVersion();
+        session.setAttribute("large", new byte[2000]);
+        ism.complete(session);
+
+        assertEquals(version, session.getVersion());
+        assertNotNull(session.getAttribute("large"));
+        assertEquals(1, ism.getSessionSizeHardLimitExceeded());
+    }
+
+    @Test
+    public void sessionIdFilter() throws Exception {
+        HttpSession existing = ism.newHttpSession(req());
+        ism.stop();
+        ism.setSessionIdFilterCapacity(1000);
+        ism.start();
+
+        SessionIdFilter filter = ism.getSessionIdFilter();
+        assertEquals(1, filter.getLastRebuildCount());
+        assertEquals(existing, ism.getHttpSession(existing.getId()));
+
+        HttpSession session = ism.newHttpSession(req());
+        assertEquals(session, ism.getHttpSession(session.getId()));
+        assertTrue(ism.getSessionIdManager().idInUse(session.getId()));
+
+        long negatives = filter.getNegatives();
+        assertNull(ism.getHttpSession("forged"));
+        assertFalse(ism.getSessionIdManager().idInUse("forged"));
+        assertEquals(negatives + 2, filter.getNegatives());
+
+        session.invalidate();
+        assertTrue(filter.mightContain(session.getId()));
+        ism.rebuildSessionIdFilter();
+        assertTrue(filter.mightContain(session.getId()));
+        ism.rebuildSessionIdFilter();
+        assertFalse(filter.mightContain(session.getId()));
+        assertTrue(filter.mightContain(existing.getId()));
+        assertEquals(3, filter.getRebuilds());
+    }
+
+    @Test
+    public void sessionIdFilterRetainsUnwrittenIds() throws Exception {
+        SessionIdFilter filter = new SessionIdFilter(1000, 0.01);
+        filter.add("created");
+
+        filter.rebuild(Collections.<String>emptyList());
+        assertTrue(filter.mightContain("created"));
+
+        filter.rebuild(Collections.singletonList("created"));
+        assertTrue(filter.mightContain("created"));
+        filter.rebuild(Collections.<String>emptyList());
+        assertFalse(filter.mightContain("created"));
+    }
+
+    @Test
+    public void sessionIdFilterFalsePositiveRate() throws Exception {
+        SessionIdFilter filter = new SessionIdFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("id-" + i);
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("id-" + i));
+        }
+
+        int positives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("unknown-" + i)) positives++;
+        }
+        assertTrue(positives + " false positives", positives < 2000);
+    }
+
+    @Test
+    public void rotateSessionId() throws Exception {
+        final List<String> changed = new ArrayList<String>();
+        ism.addEventListener(new SessionIdListener() {
+            @Override
+            public void sessionIdChanged(HttpSessionEvent event, String oldSessionId) {
+                changed.add(oldSessionId + ">" + event.getSession().getId());
+            }
+        });
+
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("a", "1");
+        ism.complete(session);
+        String first = session.getId();
+
+        HttpCookie cookie = ism.rotate(session, insecureReq(first));
+        ism.complete(session);
+        String second = session.getId();
+
+        assertFalse(first.equals(second));
+        assertEquals(second, cookie.getValue());
+        assertEquals(Arrays.asList(first + ">" + second), changed);
+        assertNull(ism.getHttpSession(first));
+        assertEquals("1", ism.getHttpSession(second).getAttribute("a"));
+        assertEquals(2, cache.size());
+
+        ism.rotate(session, insecureReq(second));
+        ism.complete(session);
+        String third = session.getId();
+
+        assertNull(ism.getHttpSession(second));
+        assertEquals(session, ism.getHttpSession(third));
+        for (int i = 0; i < 100 && cache.size() > 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, cache.size());
+
+        session.invalidate();
+        assertNull(ism.getHttpSession(third));
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void rotatedSessionIdNotReused() throws Exception {
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("a", "1");
+        ism.complete(session);
+        String first = session.getId();
+
+        ism.rotate(session, insecureReq(first));
+        ism.complete(session);
+        String second = session.getId();
+
+        assertFalse(ism.getSessionIdManager().idInUse(first));
+        HttpSession created = ism.newHttpSession(insecureReq(first));
+        assertFalse(first.equals(created.getId()));
+        assertEquals("1", ism.getHttpSession(second).getAttribute("a"));
+        assertEquals(created, ism.getHttpSession(created.getId()));
+    }
+
+    @Test
+    public void newSessionDoesNotOverwriteExistingKey() throws Exception {
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("a", "1");
+        ism.complete(session);
+        String first = session.getId();
+
+        ism.rotate(session, insecureReq(first));
+        ism.complete(session);
+
+        InfinispanHttpSession created = new InfinispanHttpSession(first, 60);
+        assertFalse(ism.write(created, true, false));
+        assertEquals("1", ism.getHttpSession(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void rotateDeferredSessionId() throws Exception {
+        ism.setDeferNewSessions(true);
+
+        HttpSession session = ism.newHttpSession(req());
+        String id = session.getId();
+        ism.rotate(session, insecureReq(id));
+
+        assertNull(ism.getHttpSession(id));
+        assertEquals(session, ism.getHttpSession(session.getId()));
+        session.setAttribute("a", "1");
+        ism.complete(session);
+        assertEquals(session, cache.get(session.getId()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void degradedLocalModeAndReconcile() throws Exception {
+        DelayInterceptor delay = new DelayInterceptor();
+        cache.getAdvancedCache().addInterceptor(delay, 0);
+
+        ism.stop();
+        ism.setSessionWriteBudget(50);
+        ism.setCircuitBreakerThreshold(2);
+        ism.setCircuitBreakerInterval(100);
+        ism.start();
+
+        HttpSession session = ism.newHttpSession(req());
+        session.setAttribute("a", "1");
+        ism.complete(session);
+
+        delay.millis = 300;
+        for (int i = 2; i <= 3; i++) {
+            session.setAttribute("a", Integer.toString(i));
+            ism.complete(session);
+        }
+        assertTrue(ism.isDegraded());
+        assertEquals(1, ism.getCircuitBreakerTrips());
+
+        long start = System.currentTimeMillis();
+        assertEquals("3", ism.getHttpSession(session.getId()).getAttribute("a"));
+        HttpSession local = ism.newHttpSession(req());
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(2, ism.getDegradedSessionCount());
+
+        delay.millis = 0;
+        for (int i = 0; i < 500 && ism.isDegraded(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(ism.isDegraded());
+        assertEquals(0, ism.getDegradedSessionCount());
+        assertNotNull(cache.get(local.getId()));
+        assertEquals("3", ism.getHttpSession(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void budgetedInvalidateAndRotate() throws Exception {
+        DelayInterceptor delay = new DelayInterceptor();
+        cache.getAdvancedCache().addInterceptor(delay, 0);
+
+        ism.stop();
+        ism.setSessionWriteBudget(50);
+        ism.setCircuitBreakerThreshold(2);
+        ism.setCircuitBreakerInterval(100);
+        ism.start();
+
+        HttpSession[] sessions = new HttpSession[3];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = ism.newHttpSession(req());
+            sessions[i].setAttribute("a", "1");
+            ism.complete(sessions[i]);
+        }
+        String invalidated = sessions[0].getId();
+        String rotated = sessions[1].getId();
+
+        delay.millis = 300;
+        long start = System.currentTimeMillis();
+        sessions[0].invalidate();
+        ism.complete(sessions[0]);
+        ism.rotate(sessions[1], insecureReq(rotated));
+        ism.complete(sessions[1]);
+        assertTrue(ism.isDegraded());
+        sessions[2].invalidate();
+        ism.complete(sessions[2]);
+        assertTrue(System.currentTimeMillis() - start < 200);
+
+        assertNull(ism.getHttpSession(invalidated));
+        assertNull(ism.getHttpSession(rotated));
+        assertNull(ism.getHttpSession(sessions[2].getId()));
+        assertEquals("1", ism.getHttpSession(sessions[1].getId()).getAttribute("a"));
+
+        delay.millis = 0;
+        for (int i = 0; i < 500 && ism.isDegraded(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(ism.isDegraded());
+        assertEquals(0, ism.getDegradedSessionCount());
+        assertNull(cache.get(invalidated));
+        assertNull(cache.get(sessions[2].getId()));
+        assertNull(ism.getHttpSession(rotated));
+        assertEquals("1", ism.getHttpSession(sessions[1].getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void degradedSessionsPassIdFilter() throws Exception {
+        DelayInterceptor delay = new DelayInterceptor();
+        cache.getAdvancedCache().addInterceptor(delay, 0);
+
+        ism.stop();
+        ism.setSessionWriteBudget(50);
+        ism.setCircuitBreakerThreshold(1);
+        ism.setCircuitBreakerInterval(1000);
+        ism.setSessionIdFilterCapacity(1000);
+        ism.start();
+
+        delay.millis = 300;
+        HttpSession session = ism.newHttpSession(req());
+        assertTrue(ism.isDegraded());
+
+        HttpSession local = ism.newHttpSession(req());
+        assertFalse(ism.getSessionIdFilter().mightContain(local.getId()));
+        assertEquals(local, ism.getHttpSession(local.getId()));
+        assertEquals(session, ism.getHttpSession(session.getId()));
+        delay.millis = 0;
+    }
+
+    private InfinispanSessionManager lazyManager(SessionStore store) throws Exception {
+        InfinispanSessionManager manager = new InfinispanSessionManager(store);
+        manager.setMaxInactiveInterval(100);
+        manager.setLazyLoading(true);
+        manager.start();
+        return manager;
+    }
+
     public HttpServletRequest req() {
         return new Request();
     }
 
+    public HttpServletRequest insecureReq(String requestedSessionId) {
+        Request request = new Request() {
+            @Override
+            public boolean isSecure() {
+                return false;
+            }
+        };
+        request.setRequestedSessionId(requestedSessionId);
+        return request;
+    }
+
+    /**
+     * Store that behaves like a distributed cache, where sessions are held by
+     * their owners rather than by every node.
+     */
+    private static class PartitionedSessionStore extends LocalSessionStore {
+        PartitionedSessionStore() {
+            super("partitioned");
+        }
+
+        @Override
+        public boolean holdsAllKeys() {
+            return false;
+        }
+    }
+
+    /**
+     * Delays all cache commands that are not restricted to the local node.
+     */
+    public static class DelayInterceptor extends BaseCustomInterceptor {
+        volatile long millis;
+
+        @Override
+        protected Object handleDefault(InvocationContext ctx, VisitableCommand command) throws Throwable {
+            if (millis > 0 && !(command instanceof FlagAffectedCommand && ((FlagAffectedCommand) command).hasFlag(Flag.CACHE_MODE_LOCAL))) {
+                Thread.sleep(millis);
+            }
+            return super.handleDefault(ctx, command);
+        }
+    }
+
     private static class HttpSessionAdapter implements HttpSessionListener {
         BlockingQueue<HttpSession> created = new LinkedBlockingQueue<HttpSession>();
         BlockingQueue<HttpSession> destroyed = new LinkedBlockingQueue<HttpSession>();
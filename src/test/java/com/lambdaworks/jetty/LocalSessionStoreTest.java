@@ -0,0 +1,205 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.junit.*;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalSessionStoreTest {
+    private LocalSessionStore store;
+    private InfinispanSessionManager ism;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new LocalSessionStore("sessions", 4);
+        ism = new InfinispanSessionManager(store);
+        ism.setMaxInactiveInterval(100);
+        ism.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ism.stop();
+    }
+
+    @Test
+    public void putGetReplaceRemove() throws Exception {
+        InfinispanHttpSession a = new InfinispanHttpSession("a", 100);
+        InfinispanHttpSession b = new InfinispanHttpSession("a", 100);
+
+        store.replace("a", a, 100, TimeUnit.SECONDS);
+        assertFalse(store.containsKey("a"));
+
+        store.put("a", a, 100, TimeUnit.SECONDS);
+        assertSame(a, store.get("a"));
+        assertSame(a, store.getAsync("a").get());
+
+        store.replace("a", b, 100, TimeUnit.SECONDS);
+        assertSame(b, store.get("a"));
+        assertEquals(Arrays.asList("a"), store.keys());
+
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void putIfAbsent() throws Exception {
+        InfinispanHttpSession a = new InfinispanHttpSession("a", 100);
+        InfinispanHttpSession b = new InfinispanHttpSession("a", 100);
+
+        assertNull(store.putIfAbsent("a", a, 50, TimeUnit.MILLISECONDS));
+        assertSame(a, store.putIfAbsent("a", b, 50, TimeUnit.MILLISECONDS));
+        assertSame(a, store.get("a"));
+
+        Thread.sleep(60);
+        assertNull(store.putIfAbsent("a", b, 50, TimeUnit.MILLISECONDS));
+        assertSame(b, store.get("a"));
+    }
+
+    @Test
+    public void sessionsExpire() throws Exception {
+        List<String> events = new ArrayList<String>();
+        store.addListener(new RecordingListener(events), true);
+
+        store.put("idle", new InfinispanHttpSession("idle", 0), 50, TimeUnit.MILLISECONDS);
+        store.put("touched", new InfinispanHttpSession("touched", 0), 50, TimeUnit.MILLISECONDS);
+        store.put("immortal", new InfinispanHttpSession("immortal", 0), -1, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(10);
+            assertTrue(store.touch("touched"));
+        }
+
+        assertEquals(1, store.expire());
+        assertFalse(store.containsKey("idle"));
+        assertTrue(store.containsKey("touched"));
+        assertTrue(store.containsKey("immortal"));
+
+        Thread.sleep(60);
+        assertNull(store.get("touched"));
+        assertEquals(0, store.expire());
+        assertEquals(1, store.size());
+
+        assertEquals(Arrays.asList(
+            "created idle", "created touched", "created immortal",
+            "removed idle", "removed touched"), events);
+    }
+
+    @Test
+    public void managerSessions() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        ism.addEventListener(new HttpSessionListener() {
+            @Override
+            public void sessionCreated(HttpSessionEvent e) {
+                events.add("created " + e.getSession().getId());
+            }
+
+            @Override
+            public void sessionDestroyed(HttpSessionEvent e) {
+                events.add("destroyed " + e.getSession().getId());
+            }
+        });
+
+        HttpSession session = ism.newHttpSession(new Request());
+        String id = session.getId();
+        session.setAttribute("a", "1");
+        ism.complete(session);
+
+        assertSame(session, store.get(id));
+        assertSame(session, ism.getHttpSession(id));
+        assertTrue(ism.getSessionIdManager().idInUse(id));
+
+        ism.setLazyLoading(true);
+        assertSame(session, ism.getHttpSession(id));
+
+        session.invalidate();
+        assertNull(ism.getHttpSession(id));
+        assertFalse(ism.getSessionIdManager().idInUse(id));
+        assertEquals(Arrays.asList("created " + id, "destroyed " + id), events);
+    }
+
+    @Test
+    public void managerStopsStore() throws Exception {
+        assertTrue(store.isStarted());
+        ism.stop();
+        assertFalse(store.isStarted());
+
+        LocalSessionStore running = new LocalSessionStore("running");
+        running.start();
+        InfinispanSessionManager manager = new InfinispanSessionManager(running);
+        manager.start();
+        manager.stop();
+        assertTrue(running.isStarted());
+        running.stop();
+    }
+
+    @Test
+    public void managerSessionExpires() throws Exception {
+        ism.setMaxInactiveInterval(1, TimeUnit.MICROSECONDS);
+        HttpSession session = ism.newHttpSession(new Request());
+        Thread.sleep(1);
+        assertNull(ism.getHttpSession(session.getId()));
+    }
+
+    @Test
+    public void managerFeatures() throws Exception {
+        ism.stop();
+        ism.setSessionIdFilterCapacity(1000);
+        ism.setSessionSizeAccounting(true);
+        ism.start();
+
+        HttpSession session = ism.newHttpSession(new Request());
+        session.setAttribute("data", new byte[1000]);
+        ism.complete(session);
+
+        assertTrue(ism.getSessionIdFilter().mightContain(session.getId()));
+        assertTrue(ism.getLargestSessions(1).get(session.getId()) > 1000);
+
+        String first = session.getId();
+        ism.rotate(session, new Request() {
+            @Override
+            public boolean isSecure() {
+                return false;
+            }
+        });
+        ism.complete(session);
+
+        assertNull(ism.getHttpSession(first));
+        assertSame(session, ism.getHttpSession(session.getId()));
+    }
+
+    private static class RecordingListener implements SessionStoreListener {
+        private final List<String> events;
+
+        RecordingListener(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void entryCreated(String key, boolean originLocal) {
+            events.add("created " + key);
+        }
+
+        @Override
+        public void entryRemoved(InfinispanHttpSession session) {
+            events.add("removed " + session.getId());
+        }
+
+        @Override
+        public void entryPassivated(InfinispanHttpSession session) {
+        }
+
+        @Override
+        public void entryActivated(InfinispanHttpSession session) {
+        }
+    }
+}
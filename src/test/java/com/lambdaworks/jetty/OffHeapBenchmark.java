@@ -0,0 +1,111 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import javax.servlet.http.HttpSession;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares GC time and request throughput of sessions kept on the heap with
+ * sessions passivated to an {@link OffHeapCacheStore}. Run with a fixed heap
+ * so the collectors have the same amount of work to do, e.g.:
+ *
+ * <pre>
+ * java -Xms512m -Xmx512m -cp ... com.lambdaworks.jetty.OffHeapBenchmark [sessions] [requests]
+ * </pre>
+ *
+ * @author  Will Glozer
+ */
+public class OffHeapBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        Configuration onHeap = new ConfigurationBuilder().build();
+
+        Configuration offHeap = new ConfigurationBuilder()
+            .eviction().maxEntries(sessions / 10).strategy(EvictionStrategy.LRU)
+            .loaders().passivation(true).addStore().cacheStore(new OffHeapCacheStore())
+                .addProperty("capacity", Long.toString(1024L * 1024 * 1024))
+            .build();
+
+        run("on-heap", onHeap, sessions, requests);
+        run("off-heap", offHeap, sessions, requests);
+    }
+
+    private static void run(String name, Configuration config, int sessions, int requests) throws Exception {
+        EmbeddedCacheManager cacheManager = new DefaultCacheManager(config);
+        Cache<String, InfinispanHttpSession> cache = cacheManager.getCache("sessions");
+
+        InfinispanSessionManager ism = new InfinispanSessionManager(cache);
+        ism.setMaxInactiveInterval(3600);
+        ism.start();
+
+        try {
+            String[] ids = new String[sessions];
+            for (int i = 0; i < sessions; i++) {
+                HttpSession session = ism.newHttpSession(new Request());
+                session.setAttribute("data", new byte[1024]);
+                ism.complete(session);
+                ids[i] = session.getId();
+            }
+
+            System.gc();
+            long gcTime = gcTime(), gcCount = gcCount();
+            long start = System.nanoTime();
+
+            Random random = new Random(0);
+            for (int i = 0; i < requests; i++) {
+                HttpSession session = ism.getHttpSession(ids[skewed(random, sessions)]);
+                ism.access(session, false);
+                session.setAttribute("n", i);
+                ism.complete(session);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-8s %10.0f req/s  gc %6d ms  %5d collections  heap %5d MB%n",
+                name, requests / (elapsed / 1e9), gcTime() - gcTime, gcCount() - gcCount, heapUsed() >> 20);
+        } finally {
+            ism.stop();
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * Pick a session with most requests going to a small set of hot sessions.
+     */
+    private static int skewed(Random random, int sessions) {
+        return random.nextInt(10) < 8 ? random.nextInt(sessions / 10) : random.nextInt(sessions);
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long heapUsed() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.container.entries.ImmortalCacheEntry;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.factories.ComponentRegistry;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderManager;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.*;
+
+import javax.servlet.http.HttpSession;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OffHeapCacheStoreTest {
+    private EmbeddedCacheManager cacheManager;
+    private Cache<String, InfinispanHttpSession> cache;
+    private OffHeapCacheStore store;
+    private InfinispanSessionManager ism;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration config = new ConfigurationBuilder()
+            .eviction().maxEntries(16).strategy(EvictionStrategy.LRU)
+            .loaders().passivation(true).addStore().cacheStore(new OffHeapCacheStore())
+                .addProperty("capacity", Integer.toString(64 * 1024))
+                .addProperty("blockSize", "256")
+                .addProperty("slabSize", Integer.toString(16 * 1024))
+            .build();
+
+        cacheManager = new DefaultCacheManager(config);
+        cache = cacheManager.getCache("cache");
+
+        ComponentRegistry registry = cache.getAdvancedCache().getComponentRegistry();
+        store = (OffHeapCacheStore) registry.getComponent(CacheLoaderManager.class).getCacheStore();
+
+        ism = new InfinispanSessionManager(cache);
+        ism.setMaxInactiveInterval(100);
+        ism.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (ism != null) ism.stop();
+        cacheManager.stop();
+    }
+
+    @Test
+    public void sessionsPassivatedOffHeap() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 64; i++) {
+            HttpSession session = ism.newHttpSession(new Request());
+            session.setAttribute("i", i);
+            ism.complete(session);
+            ids.add(session.getId());
+        }
+
+        int inMemory = cache.getAdvancedCache().getDataContainer().size();
+        assertTrue(inMemory < 64);
+        assertTrue(store.getEntryCount() >= 64 - inMemory);
+        assertTrue(store.getUsedBytes() > 0);
+
+        for (int i = 0; i < ids.size(); i++) {
+            HttpSession session = ism.getHttpSession(ids.get(i));
+            assertEquals(i, session.getAttribute("i"));
+        }
+    }
+
+    @Test
+    public void activatedSessionIsRestored() throws Exception {
+        HttpSession session = ism.newHttpSession(new Request());
+        for (int i = 0; i < 64 && !store.containsKey(session.getId()); i++) {
+            ism.newHttpSession(new Request());
+        }
+
+        assertTrue(store.containsKey(session.getId()));
+        HttpSession activated = ism.getHttpSession(session.getId());
+        assertNotSame(session, activated);
+        activated.invalidate();
+        assertNull(ism.getHttpSession(session.getId()));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictedWhenFull() throws Exception {
+        byte[] value = new byte[4096];
+        for (int i = 0; i < 64; i++) {
+            HttpSession session = ism.newHttpSession(new Request());
+            session.setAttribute("value", value);
+            ism.complete(session);
+        }
+
+        assertTrue(store.getEvictions() > 0);
+        assertTrue(store.getAllocatedBytes() <= 64 * 1024);
+    }
+
+    @Test
+    public void evictedSessionsRemoved() throws Exception {
+        final Set<String> removed = Collections.synchronizedSet(new HashSet<String>());
+        ism.getSessionStore().addListener(new SessionStoreListener() {
+            @Override
+            public void entryCreated(String key, boolean originLocal) {
+            }
+
+            @Override
+            public void entryRemoved(InfinispanHttpSession session) {
+                removed.add(session.getId());
+            }
+
+            @Override
+            public void entryPassivated(InfinispanHttpSession session) {
+            }
+
+            @Override
+            public void entryActivated(InfinispanHttpSession session) {
+            }
+        }, true);
+
+        ism.setSessionSizeAccounting(true);
+        for (int i = 0; i < 64; i++) {
+            HttpSession session = ism.newHttpSession(new Request());
+            session.setAttribute("value", new byte[4096]);
+            ism.complete(session);
+        }
+
+        assertTrue(store.getEvictions() > 0);
+        assertEquals(store.getEvictions(), removed.size());
+        for (String id : removed) {
+            assertNull(ism.getHttpSession(id));
+            assertFalse(ism.getLargestSessions(64).containsKey(id));
+        }
+    }
+
+    @Test
+    public void oversizedEntryKeepsPreviousCopy() throws Exception {
+        InfinispanHttpSession session = new InfinispanHttpSession("a", 100);
+        session.setAttribute("i", 1);
+        store.store(new ImmortalCacheEntry("a", session));
+
+        InfinispanHttpSession oversized = new InfinispanHttpSession("a", 100);
+        oversized.setAttribute("value", new byte[128 * 1024]);
+        try {
+            store.store(new ImmortalCacheEntry("a", oversized));
+            fail("oversized entry stored");
+        } catch (CacheLoaderException e) {
+            InfinispanHttpSession stored = (InfinispanHttpSession) store.load("a").getValue();
+            assertEquals(1, stored.getAttribute("i"));
+        }
+    }
+
+    @Test
+    public void blocksReused() throws Exception {
+        OffHeapMemory memory = new OffHeapMemory(1024, 256, 512);
+        int[] a = memory.allocate(3);
+        assertNull(memory.allocate(2));
+        memory.free(a);
+
+        byte[] bytes = new byte[700];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) i;
+        int[] b = memory.allocate(memory.blocks(bytes.length));
+        memory.write(b, bytes);
+        assertArrayEquals(bytes, memory.read(b, bytes.length));
+        assertEquals(1024, memory.allocatedBytes());
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import java.util.Random;
+
+/**
+ * Measures the false positive rate of a {@link SessionIdFilter} with randomly
+ * generated session IDs, the lookup throughput for unknown IDs with and without
+ * the filter, and the cost of rebuilding the filter from a session cache:
+ *
+ * <pre>
+ * java -cp ... com.lambdaworks.jetty.SessionIdFilterBenchmark [sessions] [probes]
+ * </pre>
+ *
+ * @author  Will Glozer
+ */
+public class SessionIdFilterBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int probes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        EmbeddedCacheManager cacheManager = new DefaultCacheManager();
+        Cache<String, InfinispanHttpSession> cache = cacheManager.getCache("sessions");
+
+        InfinispanSessionManager ism = new InfinispanSessionManager(cache);
+        ism.setMaxInactiveInterval(3600);
+        ism.start();
+
+        try {
+            for (int i = 0; i < sessions; i++) {
+                ism.newHttpSession(new Request());
+            }
+
+            String[] forged = new String[probes];
+            Random random = new Random(0);
+            for (int i = 0; i < probes; i++) {
+                forged[i] = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+            }
+
+            long unfiltered = lookups(ism, forged);
+
+            ism.stop();
+            for (double rate : new double[] { 0.1, 0.01, 0.001 }) {
+                ism.setSessionIdFilterCapacity(sessions);
+                ism.setSessionIdFilterFalsePositiveRate(rate);
+                ism.start();
+
+                for (int i = 0; i < 3; i++) {
+                    ism.rebuildSessionIdFilter();
+                }
+
+                SessionIdFilter filter = ism.getSessionIdFilter();
+                long filtered = lookups(ism, forged);
+
+                System.out.printf("fpp %5.3f  %8d bits  %2d hashes  observed fpp %7.5f  rebuild %4d ms for %d ids%n",
+                    rate, filter.getSize(), filter.getHashes(), (probes - filter.getNegatives()) / (double) probes,
+                    filter.getLastRebuildMillis(), filter.getLastRebuildCount());
+                System.out.printf("           unknown ID lookups %10.0f/s unfiltered  %10.0f/s filtered%n",
+                    probes / (unfiltered / 1e9), probes / (filtered / 1e9));
+
+                ism.stop();
+            }
+        } finally {
+            if (ism.isStarted()) ism.stop();
+            cacheManager.stop();
+        }
+    }
+
+    private static long lookups(InfinispanSessionManager ism, String[] ids) {
+        long start = System.nanoTime();
+        for (String id : ids) {
+            ism.getHttpSession(id);
+        }
+        return System.nanoTime() - start;
+    }
+}
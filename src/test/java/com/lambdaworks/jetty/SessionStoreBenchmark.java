@@ -0,0 +1,129 @@
+// Copyright (C) 2013 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.jetty;
+
+import org.eclipse.jetty.server.Request;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import javax.servlet.http.HttpSession;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares request throughput and latency of an {@link InfinispanSessionManager}
+ * backed by a local Infinispan cache with one backed by a {@link LocalSessionStore}.
+ * Each thread reads and updates sessions, mostly from a small set of hot sessions,
+ * and creates a new session every tenth request:
+ *
+ * <pre>
+ * java -cp ... com.lambdaworks.jetty.SessionStoreBenchmark [sessions] [requests] [threads]
+ * </pre>
+ *
+ * @author  Will Glozer
+ */
+public class SessionStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int threads  = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        for (int round = 0; round < 2; round++) {
+            EmbeddedCacheManager cacheManager = new DefaultCacheManager();
+            try {
+                Cache<String, InfinispanHttpSession> cache = cacheManager.getCache("sessions");
+                run("infinispan", new InfinispanSessionStore(cache), sessions, requests, threads);
+            } finally {
+                cacheManager.stop();
+            }
+
+            LocalSessionStore store = new LocalSessionStore("sessions");
+            try {
+                run("local", store, sessions, requests, threads);
+            } finally {
+                store.stop();
+            }
+        }
+    }
+
+    private static void run(String name, SessionStore store, int sessions, int requests, int threads) throws Exception {
+        final InfinispanSessionManager ism = new InfinispanSessionManager(store);
+        ism.setMaxInactiveInterval(3600);
+        ism.start();
+
+        try {
+            final String[] ids = new String[sessions];
+            for (int i = 0; i < sessions; i++) {
+                HttpSession session = ism.newHttpSession(new Request());
+                session.setAttribute("data", new byte[256]);
+                ism.complete(session);
+                ids[i] = session.getId();
+            }
+
+            final int perThread = requests / threads;
+            final long[][] latencies = new long[threads][perThread];
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+
+            for (int t = 0; t < threads; t++) {
+                final long[] latency = latencies[t];
+                final Random random = new Random(t);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < perThread; i++) {
+                                long begin = System.nanoTime();
+                                request(ism, ids, random, i);
+                                latency[i] = System.nanoTime() - begin;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+
+            long[] all = new long[perThread * threads];
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(latencies[t], 0, all, t * perThread, perThread);
+            }
+            Arrays.sort(all);
+
+            System.out.printf("%-10s %10.0f req/s  p50 %6.1f us  p99 %7.1f us  p99.9 %8.1f us  max %9.1f us%n",
+                name, all.length / (elapsed / 1e9),
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[all.length - 1] / 1e3);
+        } finally {
+            ism.stop();
+        }
+    }
+
+    private static void request(InfinispanSessionManager ism, String[] ids, Random random, int i) {
+        if (i % 10 == 0) {
+            HttpSession session = ism.newHttpSession(new Request());
+            session.setAttribute("n", i);
+            ism.complete(session);
+            return;
+        }
+
+        int n = random.nextInt(10) < 8 ? random.nextInt(ids.length / 10) : random.nextInt(ids.length);
+        HttpSession session = ism.getHttpSession(ids[n]);
+        ism.access(session, false);
+        session.setAttribute("n", i);
+        ism.complete(session);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1e3;
+    }
+}